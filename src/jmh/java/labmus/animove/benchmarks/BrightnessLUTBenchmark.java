@@ -0,0 +1,78 @@
+package labmus.animove.benchmarks;
+
+import ij.gui.Roi;
+import labmus.animove.processing.heatmaps.HeatmapSumImages;
+import labmus.animove.utils.functions.BrightnessLUTFunction;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The last stage of the heatmap video: a running sum (CV_32FC1) turned into a displayable frame.
+ * <p>
+ * The function closes the sum it gets, so each call works on a fresh copy. {@link #copyBaseline} measures it.
+ * Only the default LUT is measured: the others go through IJ.run(), which needs the Fiji menus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrightnessLUTBenchmark {
+
+    @Param({"480p", "1080p", "4K"})
+    public String resolution;
+
+    private Mat sum;
+    private BrightnessLUTFunction brightnessLUTFunction;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sum = new Mat();
+        try (Mat frame = SyntheticFrames.gray(resolution, 1)) {
+            frame.convertTo(sum, opencv_core.CV_32FC1, 300, 0); // about 300 frames in
+            brightnessLUTFunction = new BrightnessLUTFunction(new Roi(0, 0, frame.cols(), frame.rows()),
+                    HeatmapSumImages.defaultLut);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sum.close();
+    }
+
+    private Mat freshSum() {
+        Mat copy = new Mat(sum.rows(), sum.cols(), sum.type());
+        sum.copyTo(copy);
+        return copy;
+    }
+
+    @Benchmark
+    public Mat copyBaseline() {
+        Mat copy = freshSum();
+        copy.close();
+        return copy;
+    }
+
+    @Benchmark
+    public Mat brightnessLUT() {
+        Mat result = brightnessLUTFunction.apply(freshSum());
+        result.close();
+        return result;
+    }
+}
@@ -0,0 +1,121 @@
+package labmus.animove.benchmarks;
+
+import ij.gui.OvalRoi;
+import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.functions.AdjustBrightnessUsingThreshold;
+import labmus.animove.utils.functions.BinarizeFromThresholdFunction;
+import labmus.animove.utils.functions.ImageCalculatorFunction;
+import labmus.animove.utils.functions.MedianBlurFunction;
+import labmus.animove.utils.functions.SubtractBackgroundFunction;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame operators that work in place on 8-bit frames.
+ * <p>
+ * They change the frame they get, so every call starts by copying the source frame into a reused one.
+ * {@link #copyBaseline} measures just that copy: subtract it to get the operator alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameOperatorsBenchmark {
+
+    @Param({"480p", "1080p", "4K"})
+    public String resolution;
+
+    private Mat source;
+    private Mat frame;
+    private Mat background;
+    private Mat mask;
+
+    private ImageCalculatorFunction addFunction;
+    private ImageCalculatorFunction subtractFunction;
+    private MedianBlurFunction medianBlurFunction;
+    private SubtractBackgroundFunction subtractBackgroundFunction;
+    private AdjustBrightnessUsingThreshold adjustBrightnessFunction;
+    private BinarizeFromThresholdFunction binarizeFunction;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        source = SyntheticFrames.gray(resolution, 1);
+        frame = source.clone();
+        background = SyntheticFrames.gray(resolution, 2);
+        // same settings the commands use
+        int w = source.cols();
+        int h = source.rows();
+        mask = ZFHelperMethods.getMaskMatFromRoi(w, h, new OvalRoi(w / 10, h / 10, w * 8 / 10, h * 8 / 10));
+
+        addFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, background);
+        subtractFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.SUBTRACT, background);
+        medianBlurFunction = new MedianBlurFunction(2);
+        subtractBackgroundFunction = new SubtractBackgroundFunction(25);
+        adjustBrightnessFunction = new AdjustBrightnessUsingThreshold(0.7, mask);
+        binarizeFunction = new BinarizeFromThresholdFunction(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.close();
+        frame.close();
+        background.close();
+        mask.close();
+    }
+
+    private Mat freshFrame() {
+        source.copyTo(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public Mat copyBaseline() {
+        return freshFrame();
+    }
+
+    @Benchmark
+    public Mat imageCalculatorAdd() {
+        return addFunction.apply(freshFrame());
+    }
+
+    @Benchmark
+    public Mat imageCalculatorSubtract() {
+        return subtractFunction.apply(freshFrame());
+    }
+
+    @Benchmark
+    public Mat medianBlur() {
+        return medianBlurFunction.apply(freshFrame());
+    }
+
+    @Benchmark
+    public Mat subtractBackground() {
+        return subtractBackgroundFunction.apply(freshFrame());
+    }
+
+    @Benchmark
+    public Mat adjustBrightnessUsingThreshold() {
+        return adjustBrightnessFunction.apply(freshFrame());
+    }
+
+    @Benchmark
+    public Mat binarizeFromThreshold() {
+        return binarizeFunction.apply(freshFrame());
+    }
+}
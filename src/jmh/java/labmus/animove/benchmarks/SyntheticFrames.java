@@ -0,0 +1,70 @@
+package labmus.animove.benchmarks;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.util.Random;
+
+/**
+ * Frames that look roughly like ours: a light, uneven background with noise and a few dark fish-sized blobs.
+ * Always the same for the same size, so runs can be compared.
+ */
+public class SyntheticFrames {
+
+    /**
+     * @param resolution "480p", "1080p" or "4K"
+     * @return {width, height}
+     */
+    public static int[] size(String resolution) {
+        switch (resolution) {
+            case "480p":
+                return new int[]{640, 480};
+            case "1080p":
+                return new int[]{1920, 1080};
+            case "4K":
+                return new int[]{3840, 2160};
+            default:
+                throw new IllegalArgumentException("Unknown resolution: " + resolution);
+        }
+    }
+
+    /**
+     * @return a CV_8UC1 frame. close it
+     */
+    public static Mat gray(String resolution, long seed) {
+        int[] size = size(resolution);
+        int width = size[0];
+        int height = size[1];
+
+        Mat frame = new Mat(height, width, opencv_core.CV_8UC1, new Scalar(200.0));
+        // vignette-like gradient, so backgrounds and thresholds have something to do
+        try (Mat gradient = new Mat(height, width, opencv_core.CV_8UC1, new Scalar(0.0))) {
+            opencv_imgproc.circle(gradient, new Point(width / 2, height / 2), Math.max(width, height) / 2,
+                    new Scalar(40.0), -1, opencv_imgproc.LINE_8, 0);
+            opencv_imgproc.GaussianBlur(gradient, gradient, new Size(0, 0), height / 8.0);
+            opencv_core.subtract(frame, gradient, frame);
+        }
+
+        Random random = new Random(seed);
+        int fishLength = Math.max(8, width / 40);
+        for (int i = 0; i < 12; i++) {
+            Point center = new Point(random.nextInt(width), random.nextInt(height));
+            opencv_imgproc.ellipse(frame, center, new Size(fishLength, fishLength / 4), random.nextInt(180), 0, 360,
+                    new Scalar(40.0 + random.nextInt(40)), -1, opencv_imgproc.LINE_AA, 0);
+        }
+
+        // signed, so the noise goes both ways
+        try (Mat noise = new Mat(height, width, opencv_core.CV_16SC1);
+             Mat mean = new Mat(1, 1, opencv_core.CV_64FC1, new Scalar(0.0));
+             Mat stddev = new Mat(1, 1, opencv_core.CV_64FC1, new Scalar(6.0))) {
+            opencv_core.setRNGSeed((int) seed);
+            opencv_core.randn(noise, mean, stddev);
+            opencv_core.add(frame, noise, frame, null, opencv_core.CV_8U);
+        }
+        return frame;
+    }
+}
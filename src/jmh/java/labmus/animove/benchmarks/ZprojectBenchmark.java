@@ -0,0 +1,75 @@
+package labmus.animove.benchmarks;
+
+import labmus.animove.utils.functions.ZprojectFunction;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame going into a projection that has already seen many, the steady state of a Z Project run.
+ * With returnAccumulator the running result is copied out too, like the heatmap video does.
+ * <p>
+ * The projection doesn't change its input, so no copies are needed. Frames alternate between two sources,
+ * so MIN and MAX keep finding pixels to update.
+ * MEDIAN can't return its accumulator, it has its own benchmark: {@link ZprojectMedianBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZprojectBenchmark {
+
+    @Param({"480p", "1080p", "4K"})
+    public String resolution;
+
+    @Param({"MIN", "MAX", "AVG", "SUM", "STD", "VARIANCE"})
+    public ZprojectFunction.OperationMode mode;
+
+    @Param({"false", "true"})
+    public boolean returnAccumulator;
+
+    private Mat[] sources;
+    private int next = 0;
+    private ZprojectFunction zprojectFunction;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sources = new Mat[]{SyntheticFrames.gray(resolution, 1), SyntheticFrames.gray(resolution, 2)};
+        zprojectFunction = new ZprojectFunction(mode, returnAccumulator);
+        zprojectFunction.apply(sources[0]); // the first frame only allocates the accumulator
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        zprojectFunction.getResultMat().close();
+        for (Mat source : sources) {
+            source.close();
+        }
+    }
+
+    @Benchmark
+    public Mat accumulate() {
+        Mat source = sources[next];
+        next ^= 1;
+        Mat result = zprojectFunction.apply(source);
+        if (result != source) {
+            result.close();
+        }
+        return result;
+    }
+}
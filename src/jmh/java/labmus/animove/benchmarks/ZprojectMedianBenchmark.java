@@ -0,0 +1,61 @@
+package labmus.animove.benchmarks;
+
+import labmus.animove.utils.functions.ZprojectFunction;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same as {@link ZprojectBenchmark}, for MEDIAN: one frame going into the reservoir.
+ * There's no returnAccumulator, MEDIAN only has a result at the end.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZprojectMedianBenchmark {
+
+    @Param({"480p", "1080p", "4K"})
+    public String resolution;
+
+    private Mat[] sources;
+    private int next = 0;
+    private ZprojectFunction zprojectFunction;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sources = new Mat[]{SyntheticFrames.gray(resolution, 1), SyntheticFrames.gray(resolution, 2)};
+        zprojectFunction = new ZprojectFunction(ZprojectFunction.OperationMode.MEDIAN);
+        zprojectFunction.apply(sources[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        zprojectFunction.getResultMat().close();
+        for (Mat source : sources) {
+            source.close();
+        }
+    }
+
+    @Benchmark
+    public Mat accumulate() {
+        Mat source = sources[next];
+        next ^= 1;
+        return zprojectFunction.apply(source);
+    }
+}
@@ -24,6 +24,7 @@ public abstract class ZFConfigs {
     public static final String frameExtractorPath = toolsPath + "Frame Extractor";
     public static final String performanceTest = toolsPath + "Performance Test";
     public static final String invertPath = toolsPath + "Invert Video";
+    public static final String batchPath = toolsPath + "Batch Processing";
 
     private static final String heatmapsPath = processingPath + "Heatmaps>";
     public static final String heatmapSumImagesPath = heatmapsPath + "Sum Heatmap Images (Adults)";
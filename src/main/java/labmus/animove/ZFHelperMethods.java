@@ -1,36 +1,35 @@
 package labmus.animove;
 
-import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.gui.Roi;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
-import ij.process.StackStatistics;
 import labmus.animove.analysis.SectorScoreAnalysis;
+import labmus.animove.utils.ArtifactCache;
+import labmus.animove.utils.Cancellation;
+import labmus.animove.utils.FrameIndex;
+import labmus.animove.utils.FramePipeline;
+import labmus.animove.utils.FrameReader;
+import labmus.animove.utils.GrayDecoder;
+import labmus.animove.utils.IterationOptions;
+import labmus.animove.utils.ProcessingScheduler;
+import labmus.animove.utils.Profiler;
+import labmus.animove.utils.ProgressReporter;
+import labmus.animove.utils.RoiMasks;
+import labmus.animove.utils.VideoInfo;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.Java2DFrameConverter;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
 import org.scijava.app.StatusService;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
 import java.util.function.Function;
-import java.util.stream.IntStream;
-
-import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGR2GRAY;
-import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
 
 /**
  * Not for use during prod, this class has useful code snippets used
@@ -58,8 +57,7 @@ public class ZFHelperMethods {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-//        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffprobe);
+        ProcessingScheduler.warmUp();
     }
 
     public static final Function<Mat, Mat> InvertFunction = (mat) -> {
@@ -68,165 +66,184 @@ public class ZFHelperMethods {
     };
 
     /**
-     * this is expensive. think about it.
+     * 255 inside the ROI, 0 outside. Cached, see {@link RoiMasks}.
+     *
+     * @return a new mask, close it. null without a ROI
      */
     public static Mat getMaskMatFromRoi(int width, int height, Roi roi) {
-        if (roi == null) {
-            return null; // this is intended behavior
-        }
-        ImageProcessor bp = new ByteProcessor(width, height);
-        ImagePlus imp = new ImagePlus("", bp);
-        imp.setRoi(roi);
+        return RoiMasks.get(width, height, roi);
+    }
 
-        Java2DFrameConverter biConverter = new Java2DFrameConverter();
-        OpenCVFrameConverter.ToMat matConverter = new OpenCVFrameConverter.ToMat();
+    /**
+     * The ROI's bounding rectangle, clipped to the frame. See {@link IterationOptions#setCrop}.
+     *
+     * @throws Exception if the ROI is entirely outside the frame
+     */
+    public static Rect getRoiBounds(Roi roi, int width, int height) throws Exception {
+        Rectangle bounds = roi.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) {
+            throw new Exception("The ROI is outside the video frame.");
+        }
+        return new Rect(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
 
-        BufferedImage bi = imp.createRoiMask().getBufferedImage();
-//        new ImagePlus("roi", bi).show();
+    /**
+     * @return a copy of the ROI placed where it is in a frame cropped to crop
+     */
+    public static Roi shiftRoi(Roi roi, Rect crop) {
+        Roi shifted = (Roi) roi.clone();
+        Rectangle bounds = roi.getBounds();
+        shifted.setLocation(bounds.x - crop.x(), bounds.y - crop.y());
+        return shifted;
+    }
 
-        Mat convert = matConverter.convert(biConverter.convert(bi));
-        Mat mask8u = new Mat();
-        convert.convertTo(mask8u, opencv_core.CV_8U, 255.0, 0.0);
-        biConverter.close();
-        matConverter.close();
+    /**
+     * you need to close the returned mat. the original is left untouched.
+     */
+    public static Mat cropMat(Mat mat, Rect crop) {
+        Mat cropped = new Mat(crop.height(), crop.width(), mat.type());
+        try (Mat region = new Mat(mat, crop)) {
+            region.copyTo(cropped);
+        }
+        return cropped;
+    }
 
-        return mask8u;
+    /**
+     * Frame rate, size and length of a video, without opening a grabber when it's been probed before.
+     * see {@link ArtifactCache}
+     */
+    public static VideoInfo probeVideo(File inputFile) throws Exception {
+        String key = ArtifactCache.key(inputFile, "probe");
+        VideoInfo info = VideoInfo.fromProperties(ArtifactCache.getProperties(key));
+        if (info != null) {
+            return info;
+        }
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
+            grabber.start();
+            info = new VideoInfo(grabber.getFrameRate(), grabber.getImageWidth(), grabber.getImageHeight(), grabber.getLengthInFrames());
+        }
+        ArtifactCache.putProperties(key, info.toProperties());
+        return info;
     }
 
     public static ImagePlus getFirstFrame(File inputFile) throws Exception {
         File tempFile = ZFHelperMethods.createPluginTempFile("png");
-
-        // Build FFmpeg command
-        ArrayList<String> commandList = new ArrayList<>();
-        commandList.add(ZFConfigs.ffmpeg);
-
-        commandList.add("-y");
-        commandList.add("-an");
-        commandList.add("-noautorotate");
-        commandList.add("-i");
-        commandList.add(inputFile.getAbsolutePath());
-
-        commandList.add("-vframes");
-        commandList.add("1");
-
-        commandList.add(tempFile.getAbsolutePath());
-
-        // Execute FFmpeg command
-        ProcessBuilder pb = new ProcessBuilder(commandList);
-        pb.redirectErrorStream(true);
-        Process process = pb.start();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            while ((reader.readLine()) != null) {
+        try {
+            // Build FFmpeg command
+            ArrayList<String> commandList = new ArrayList<>();
+            commandList.add(ZFConfigs.ffmpeg);
+
+            commandList.add("-y");
+            commandList.add("-an");
+            commandList.add("-noautorotate");
+            commandList.add("-i");
+            commandList.add(inputFile.getAbsolutePath());
+
+            commandList.add("-vframes");
+            commandList.add("1");
+
+            commandList.add(tempFile.getAbsolutePath());
+
+            // Execute FFmpeg command
+            ProcessBuilder pb = new ProcessBuilder(commandList);
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            try (Cancellation.ProcessWatch watch = Cancellation.killOnCancel(process)) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    while ((reader.readLine()) != null) {
+                    }
+                }
+                watch.waitFor();
             }
+            return new ImagePlus(tempFile.getAbsolutePath());
+        } finally {
+            // the image is read whole, it's not needed anymore
+            Files.deleteIfExists(tempFile.toPath());
         }
-        process.waitFor();
-        return new ImagePlus(tempFile.getAbsolutePath());
     }
 
     public static void iterateOverFrames(Function<Mat, Mat> matFunction,
                                          File inputFile, int startFrame, int endFrame, StatusService statusService) throws Exception {
+        iterateOverFrames(matFunction, inputFile, startFrame, endFrame, statusService, new IterationOptions());
+    }
 
-        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-            grabber.start();
-
-//            int totalFrames = getExactFrameCount(inputFile) - 1; // frame numbers are 0-indexed.
-            int totalFrames = grabber.getLengthInFrames() - 1; // frame numbers are 0-indexed.
-
-            boolean processUntilEnd = endFrame <= 0 || endFrame > totalFrames;
-            int actualEndFrame = (processUntilEnd) ? totalFrames : endFrame - 1;
-
-            int actualStartFrame = Math.max(0, startFrame - 2);
-
-            if (startFrame == 1) {
-                // grabber.setFrameNumber() will mess the frame count. just leave as-is for the first frame.
-                if (!processUntilEnd) {
-                    actualEndFrame++;
-                }
-            } else if (startFrame == 2) {
-                grabber.setFrameNumber(0);
-            } else {
-                grabber.setFrameNumber(actualStartFrame);
-            }
-
-
-            if (actualStartFrame >= actualEndFrame) {
-                throw new Exception("Initial frame must be before end frame.");
-            }
-            int framesToProcess = actualEndFrame - actualStartFrame;
+    public static void iterateOverFrames(Function<Mat, Mat> matFunction,
+                                         File inputFile, int startFrame, int endFrame, StatusService statusService,
+                                         IterationOptions options) throws Exception {
 
-            if (statusService != null) {
-                statusService.showStatus("Processing frames... ");
+        boolean sampling = options.getSamples() > 0;
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
+            if (sampling || options.isKeyframesOnly()) {
+                FrameReader.skipNonKeyframes(grabber);
             }
-
-//            IJ.log("Actual start frame: " + actualStartFrame);
-//            IJ.log("Actual end frame: " + actualEndFrame);
-//            IJ.log("processUntilEnd: " + processUntilEnd);
-//            IJ.log("totalFrames: " + totalFrames);
-
-//            int count = 0;
-            // it's better to declare these two here
-            // for secret and random memory things
-            Frame jcvFrame;
-            Mat currentFrame;
-            for (int i = actualStartFrame; (i < actualEndFrame) || processUntilEnd; i++) {
-                jcvFrame = grabber.grabImage();
-//                IJ.log("i: " + i + " - grabber: " + grabber.getFrameNumber());
-                if (jcvFrame == null || jcvFrame.image == null) {
-                    if (processUntilEnd) {
-                        break;
-                    }
-                    throw new Exception("Read terminated prematurely at frame " + i); // we were NOT done!!
+            GrayDecoder.startGrabber(grabber);
+            FrameIndex index = options.getIndex() != null ? options.getIndex() : FrameIndex.getCached(inputFile);
+            try (FrameReader reader = FrameReader.open(grabber, startFrame, endFrame, index)) {
+                reader.setCrop(options.getCrop());
+                if (sampling) {
+                    reader.setSamples(options.getSamples());
+                } else {
+                    reader.setSampling(options.getStride(), options.isKeyframesOnly());
                 }
-
-                if (i >= actualEndFrame) { // processUntilEnd = true
-                    processUntilEnd = false; // just process one more frame
-                    // we assume the file header/metadata didn't lie about the length
-                    // the imprecision here comes from the grabber.getLengthInFrames() method, that is imprecise
+                if (index == null && startFrame <= 1 && endFrame <= 0 && !sampling
+                        && options.getStride() == 1 && !options.isKeyframesOnly()) {
+                    // every frame goes through here anyway, the index comes for free
+                    reader.recordIndex(new FrameIndex.Builder(inputFile));
                 }
+                int framesToProcess = reader.getFramesToProcess();
+                Profiler profiler = options.getProfiler() != null ? options.getProfiler() : new Profiler(false);
+                ProgressReporter progress = new ProgressReporter(statusService, "Processing frames...", framesToProcess);
 
-                // No one knows why, and it took a few days to figure out why, but
-                // you NEED a new converter every frame here. Dw about it, it doesn't leak.
-                try (OpenCVFrameConverter.ToMat cnv = new OpenCVFrameConverter.ToMat()) {
-                    Mat currentFrameColor = cnv.convert(jcvFrame);
+                if (statusService != null) {
+                    statusService.showStatus("Processing frames... ");
+                }
 
-                    // check if we should be converting to grayscale
-                    if (currentFrameColor.channels() > 1) {
-                        currentFrame = new Mat();
-                        cvtColor(currentFrameColor, currentFrame, COLOR_BGR2GRAY);
+                Cancellation cancellation = Cancellation.current();
+                Profiler.setCurrent(profiler);
+                try {
+                    if (options.isPipelined()) {
+                        FramePipeline.run(reader, matFunction, progress, profiler, options);
                     } else {
-                        currentFrame = currentFrameColor;
+                        Mat currentFrame;
+                        while (true) {
+                            cancellation.check();
+                            long decodeStart = System.nanoTime();
+                            if ((currentFrame = reader.next()) == null) {
+                                break;
+                            }
+                            profiler.record(Profiler.DECODE, decodeStart);
+
+                            applyToFrame(matFunction, currentFrame);
+
+                            reader.recycle(currentFrame);
+                            profiler.frameDone();
+                            // skipped frames count too
+                            progress.update(reader.getPosition());
+                        }
                     }
-
-                    if (currentFrame.isNull()) {
-                        throw new Exception("Error processing frame " + i); // we were NOT done!!
-                    }
-
-//                    long initTime = System.currentTimeMillis();
-
-                    matFunction.andThen((mat) -> {
-                        mat.close();
-                        return null;
-                    }).apply(currentFrame);
-
-//                    IJ.log("Frame " + i + " processed in " + (System.currentTimeMillis() - initTime) + " ms");
-
-                    currentFrame.close();
-                    currentFrameColor.close();
-                    if (statusService != null) {
-                        statusService.showProgress(i + 1, framesToProcess);
-                    }
-//                    count++;
+                } finally {
+                    Profiler.setCurrent(null);
+                    profiler.finish();
                 }
             }
-//            IJ.log("count:  " + count);
-            System.gc();
-
         }
         if (statusService != null) {
             statusService.showStatus("Done!");
         }
     }
 
+    /**
+     * Runs the function chain on a frame and closes what the chain returns, unless it's the frame itself.
+     * Most functions work in place, so the frame can go back to its pool afterwards.
+     * Functions that return a new Mat hand it over: it's closed here.
+     */
+    public static void applyToFrame(Function<Mat, Mat> matFunction, Mat frame) {
+        Mat result = matFunction.apply(frame);
+        if (result != null && result != frame) {
+            result.close();
+        }
+    }
+
     /**
      * Adds a lot of overhead. Reading each frame can take a lot of time,
      * and creating a new process may be slow as well.
@@ -234,8 +251,14 @@ public class ZFHelperMethods {
      * avoids off-by-one errors completely, even in malformed files with wrong metadata
      * <p>
      * But this is not the general case. We usually just created the files we are reading from.
+     * <p>
+     * Free if the file has a {@link FrameIndex} already.
      */
     public static int getExactFrameCount(File file) throws IOException, InterruptedException {
+        FrameIndex index = FrameIndex.getCached(file);
+        if (index != null) {
+            return index.getFrameCount();
+        }
         // -v error: hide logs
         // -count_frames: actually count them by decoding
         // -select_streams v:0: video stream only
@@ -252,13 +275,15 @@ public class ZFHelperMethods {
         pb.redirectErrorStream(true); // the process may crash without this
 
         Process process = pb.start();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line = reader.readLine();
-            if (line != null && !line.isEmpty()) {
-                return Integer.parseInt(line.trim());
+        try (Cancellation.ProcessWatch watch = Cancellation.killOnCancel(process)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line = reader.readLine();
+                if (line != null && !line.isEmpty()) {
+                    return Integer.parseInt(line.trim());
+                }
             }
+            watch.waitFor();
         }
-        process.waitFor();
         return -1;
     }
 
@@ -301,69 +326,4 @@ public class ZFHelperMethods {
         return colors;
     }
 
-    public static void autoAdjustBrightnessStack(ImagePlus imp, boolean useROI) {
-        if (!useROI) {
-            IJ.run(imp, "Select None", "");
-        }
-        ImageStatistics stats = new StackStatistics(imp);
-        apply(imp, stats.min, stats.max);
-    }
-
-    /**
-     * modified version of ij/plugin/filter/LutApplier.java
-     */
-    private static void apply(ImagePlus imp, double min, double max) {
-        int depth = imp.getBitDepth();
-        if (imp.getType() == ImagePlus.COLOR_RGB) {
-            applyRGBStack(imp, min, max);
-            return;
-        }
-        ImageProcessor ip = imp.getProcessor();
-        ip.resetMinAndMax();
-        int range = 256;
-        if (depth == 16) {
-            range = 65536;
-            int defaultRange = ImagePlus.getDefault16bitRange();
-            if (defaultRange > 0)
-                range = (int) Math.pow(2, defaultRange) - 1;
-        }
-        int tableSize = depth == 16 ? 65536 : 256;
-        int[] table = new int[tableSize];
-        for (int i = 0; i < tableSize; i++) {
-            if (i <= min)
-                table[i] = 0;
-            else if (i >= max)
-                table[i] = range - 1;
-            else
-                table[i] = (int) (((double) (i - min) / (max - min)) * range);
-        }
-//        ImageProcessor mask = imp.getMask();
-        ImageProcessor mask = imp.createRoiMask(); // same resolution as image
-        applyOtherStack(imp, mask, table);
-        if (depth == 16) {
-            imp.setDisplayRange(0, range - 1);
-        }
-        imp.updateAndDraw();
-    }
-
-    private static void applyRGBStack(ImagePlus imp, double min, double max) {
-        ImageStack stack = imp.getStack();
-        IntStream.rangeClosed(1, stack.getSize())
-                .forEach(i -> {
-                    ImageProcessor ip = stack.getProcessor(i);
-                    ip.setMinAndMax(min, max);
-                });
-    }
-
-    private static void applyOtherStack(ImagePlus imp, ImageProcessor mask, int[] table) {
-        ImageStack stack = imp.getStack();
-        IntStream.rangeClosed(1, stack.getSize())
-                .forEach(i -> {
-                    ImageProcessor ip = stack.getProcessor(i);
-                    if (mask != null) ip.snapshot();
-                    ip.applyTable(table);
-                    ip.reset(mask);
-                });
-    }
-
 }
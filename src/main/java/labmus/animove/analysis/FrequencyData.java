@@ -4,6 +4,7 @@ import ij.ImagePlus;
 import ij.measure.ResultsTable;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.XMLHelper;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.AxisSpace;
@@ -30,7 +31,6 @@ import java.awt.*;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -40,7 +40,7 @@ public class FrequencyData implements Command, Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "XML File", style = FileWidget.OPEN_STYLE, persist = false, required = false)
@@ -214,7 +214,7 @@ public class FrequencyData implements Command, Interactive {
             uiService.showDialog("Could not open video: \nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (videoFrame != null && videoFrame.getWindow() != null) {
                     videoFrame.close();
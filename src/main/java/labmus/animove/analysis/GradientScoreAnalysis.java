@@ -10,6 +10,7 @@ import ij.measure.ResultsTable;
 import ij.plugin.ImagesToStack;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.XMLHelper;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -60,7 +61,7 @@ public class GradientScoreAnalysis implements Command, Interactive, MouseListene
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "XML File", style = FileWidget.OPEN_STYLE, persist = false, required = false)
@@ -425,7 +426,7 @@ public class GradientScoreAnalysis implements Command, Interactive, MouseListene
         }
 
 //        KeyboardFocusManager.getCurrentKeyboardFocusManager().getActiveWindow().setAlwaysOnTop(true);
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (videoFrame != null && videoFrame.getWindow() != null) {
                     videoFrame.close();
@@ -454,8 +455,8 @@ public class GradientScoreAnalysis implements Command, Interactive, MouseListene
                         videoFrame.getCanvas().addMouseListener(this);
                         videoFrame.getCanvas().addMouseMotionListener(this);
                         drawOverlay();
-                        scheduler.shutdown();
                     }
+                    scheduler.shutdown();
                 }, 100, TimeUnit.MILLISECONDS);
 
 
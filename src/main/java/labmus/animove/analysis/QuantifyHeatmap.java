@@ -8,6 +8,7 @@ import ij.plugin.frame.RoiManager;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
 import labmus.animove.tools.ROICreator;
+import labmus.animove.utils.ProcessingScheduler;
 import org.bytedeco.javacv.Java2DFrameConverter;
 import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.global.opencv_core;
@@ -41,7 +42,6 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.Collections;
 import java.util.Locale;
-import java.util.concurrent.Executors;
 
 import static org.bytedeco.opencv.global.opencv_core.CMP_EQ;
 import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
@@ -53,8 +53,7 @@ public class QuantifyHeatmap implements Command, Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(required = false)
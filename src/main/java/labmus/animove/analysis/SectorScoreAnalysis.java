@@ -7,6 +7,7 @@ import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.XMLHelper;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -37,7 +38,6 @@ import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
 
 @SuppressWarnings({"FieldCanBeLocal"})
 @Plugin(type = Command.class, menuPath = ZFConfigs.scoreSectorPath)
@@ -45,7 +45,7 @@ public class SectorScoreAnalysis implements Command, Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "XML File", style = FileWidget.OPEN_STYLE, persist = false, required = false)
@@ -232,7 +232,7 @@ public class SectorScoreAnalysis implements Command, Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (videoFrame != null && videoFrame.getWindow() != null) {
                     videoFrame.close();
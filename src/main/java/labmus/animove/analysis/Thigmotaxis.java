@@ -7,6 +7,7 @@ import ij.plugin.RoiScaler;
 import ij.plugin.frame.RoiManager;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.XMLHelper;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -40,7 +41,6 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -50,7 +50,7 @@ public class Thigmotaxis implements Command, Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "XML File", style = FileWidget.OPEN_STYLE, persist = false, required = false)
@@ -300,7 +300,7 @@ public class Thigmotaxis implements Command, Interactive {
             uiService.showDialog("Could not open video: \nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (videoFrame != null && videoFrame.getWindow() != null) {
                     videoFrame.close();
@@ -3,8 +3,10 @@ package labmus.animove.processing.heatmaps;
 import ij.ImagePlus;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ParallelZprojector;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.functions.*;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -19,9 +21,7 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -34,8 +34,7 @@ public class HeatmapBinaryImage extends DynamicCommand implements Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "Input Video", style = "file", callback = "updateOutputName", persist = false, required = false)
@@ -91,44 +90,29 @@ public class HeatmapBinaryImage extends DynamicCommand implements Interactive {
         if (previewImagePlus != null){
             previewImagePlus.close();
         }
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        ProcessingScheduler.submit(doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Binary heatmap", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(
-                    outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1));
-            // whatever the user chooses if imwrite supports it
-
-            ZprojectFunction zprojectFunction = new ZprojectFunction(ZprojectFunction.OperationMode.MIN);
-
-            Function<Mat, Mat> processFunction = new BinarizeFromThresholdFunction(false)
-                    .andThen(zprojectFunction);
-
-            ZFHelperMethods.iterateOverFrames(processFunction, inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
-            Mat heatmapMat = zprojectFunction.getResultMat();
-
-            ZprojectFunction zprojectFunctionAvg = new ZprojectFunction(ZprojectFunction.OperationMode.AVG);
-            ZFHelperMethods.iterateOverFrames(zprojectFunctionAvg, inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
-            Mat avgMat = zprojectFunctionAvg.getResultMat();
-
-            Mat resultMat = new BinarizeFromThresholdFunction(false)
-                    .andThen(ZFHelperMethods.InvertFunction)
-                    .andThen(new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, heatmapMat))
-//                .andThen(new ShowEveryFrameFunction())
-                    .apply(avgMat);
-
-            imwrite(tempOutputFile.getAbsolutePath(), resultMat);
-            resultMat.close();
-            heatmapMat.close();
-            avgMat.close();
-
-            ImagePlus imp = new ImagePlus(tempOutputFile.getAbsolutePath());
-            imp.setTitle(outputFile.getName());
-            imp.show();
-
-            if (saveOutput && !doPreview){
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+            Mat resultMat = process(inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
+
+            boolean save = saveOutput && !doPreview;
+            try (PendingOutput output = PendingOutput.to(save ? outputFile : null,
+                    outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1))) {
+                // whatever the user chooses if imwrite supports it
+                imwrite(output.getFile().getAbsolutePath(), resultMat);
+                resultMat.close();
+
+                // read whole, so an output that isn't saved can be deleted right away
+                ImagePlus imp = new ImagePlus(output.getFile().getAbsolutePath());
+                imp.setTitle(outputFile.getName());
+                imp.show();
+
+                if (save) {
+                    output.commit();
+                }
             }
 
         } catch (Exception e) {
@@ -138,6 +122,27 @@ public class HeatmapBinaryImage extends DynamicCommand implements Interactive {
     }
 
 
+    /**
+     * The whole pipeline, without any UI. Also used by {@link labmus.animove.utils.BatchRunner}.
+     *
+     * @return the heatmap. close it
+     */
+    public static Mat process(File inputFile, int startFrame, int endFrame, StatusService statusService) throws Exception {
+        Mat heatmapMat = ParallelZprojector.projectCached(ZprojectFunction.OperationMode.MIN, "binarize", () -> new BinarizeFromThresholdFunction(false),
+                inputFile, startFrame, endFrame, statusService);
+
+        Mat avgMat = ParallelZprojector.projectCached(ZprojectFunction.OperationMode.AVG, "none", Function::identity,
+                inputFile, startFrame, endFrame, statusService);
+
+        Mat resultMat = new BinarizeFromThresholdFunction(false)
+                .andThen(ZFHelperMethods.InvertFunction)
+                .andThen(new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, heatmapMat))
+//                .andThen(new ShowEveryFrameFunction())
+                .apply(avgMat);
+        heatmapMat.close();
+        return resultMat;
+    }
+
     /**
      * Callback method to update the output filename when an input file changes.
      * Generates a unique output filename by appending a mode-matching suffix and the appropriate extension.
@@ -171,7 +176,7 @@ public class HeatmapBinaryImage extends DynamicCommand implements Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
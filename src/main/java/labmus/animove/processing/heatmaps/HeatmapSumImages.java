@@ -6,10 +6,13 @@ import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.FrameIndex;
+import labmus.animove.utils.ParallelZprojector;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.functions.BrightnessLUTFunction;
 import labmus.animove.utils.functions.ImageCalculatorFunction;
+import labmus.animove.utils.functions.RunningBackgroundFunction;
 import labmus.animove.utils.functions.ZprojectFunction;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -25,8 +28,10 @@ import org.scijava.widget.Button;
 import org.scijava.widget.FileWidget;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -38,8 +43,7 @@ public class HeatmapSumImages extends DynamicCommand implements Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "Input Video", style = FileWidget.OPEN_STYLE, callback = "updateOutputFolder", persist = false, required = false)
@@ -79,6 +83,9 @@ public class HeatmapSumImages extends DynamicCommand implements Interactive {
     @Parameter(label = "Interval")
     private String endInterval = "30601-36000";
 
+    @Parameter(label = "Single pass (running background)", persist = false)
+    private boolean onlineBackground = false;
+
     @Parameter(label = "Custom")
     private boolean doCustomInterval = false;
 
@@ -145,12 +152,17 @@ public class HeatmapSumImages extends DynamicCommand implements Interactive {
             previewImagePlus.close();
         }
 
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        ProcessingScheduler.submit(doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Heatmap images", () -> this.executeProcessing(doPreview));
 
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
+            // each interval is read twice, from the middle of the video. with an index, those seeks are exact
+            // and only decode from the keyframe before the interval. built once per video
+            FrameIndex index = doPreview ? null : FrameIndex.get(inputFile, statusService);
+
             // this just allows to re-use the same code for all intervals.
             // looks messy, ik
             for (String interval : Arrays.asList(doStartInterval ? startInterval : "",
@@ -169,25 +181,8 @@ public class HeatmapSumImages extends DynamicCommand implements Interactive {
                 int endFrame = doPreview ? startFrame + 9 : Integer.parseInt(a[1]);
                 interval = a[0] + "-" + a[1]; // making sure displayed data is right
 
-                ZprojectFunction zprojectFunctionAvg = new ZprojectFunction(ZprojectFunction.OperationMode.AVG);
-                ZFHelperMethods.iterateOverFrames(ZFHelperMethods.InvertFunction.andThen(zprojectFunctionAvg), inputFile, startFrame, endFrame, statusService);
-                Mat avgMat = zprojectFunctionAvg.getResultMat();
-
-                Function<Mat, Mat> subtractFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, avgMat);
-                Function<Mat, Mat> bcFunction = (mat) -> {
-                    mat.convertTo(mat, -1, 1, 30); // todo: maybe either calculate beta automatically or let the user choose...
-                    return mat;
-                };
-                ZprojectFunction zprojectFunctionSum = new ZprojectFunction(ZprojectFunction.OperationMode.SUM);
-                ZFHelperMethods.iterateOverFrames(subtractFunction.andThen(bcFunction).andThen(ZFHelperMethods.InvertFunction).andThen(zprojectFunctionSum), inputFile, startFrame, endFrame, statusService);
-                Mat sumMat = zprojectFunctionSum.getResultMat();
-
-                BrightnessLUTFunction brightnessLUTFunction = new BrightnessLUTFunction(this.lastRoi, this.lut);
-                brightnessLUTFunction.apply(sumMat);
-
-                ImagePlus imp = new ImagePlus(interval, brightnessLUTFunction.getLastBi());
-                brightnessLUTFunction.close();
-
+                ImagePlus imp = processInterval(inputFile, startFrame, endFrame, lastRoi, lut, onlineBackground, index, statusService);
+                imp.setTitle(interval);
                 imp.show();
 
                 if (saveOutput && !doPreview){
@@ -197,8 +192,6 @@ public class HeatmapSumImages extends DynamicCommand implements Interactive {
                 if (doPreview) {
                     break;
                 }
-                sumMat.close();
-                avgMat.close();
             }
             if (!doPreview) {
                 uiService.showDialog("Processing done", ZFConfigs.pluginName, DialogPrompt.MessageType.INFORMATION_MESSAGE);
@@ -210,12 +203,69 @@ public class HeatmapSumImages extends DynamicCommand implements Interactive {
 
     }
 
+    /**
+     * One heatmap image, without any UI. Also used by {@link labmus.animove.utils.BatchRunner}.
+     *
+     * @param roi              brightness is adjusted inside it
+     * @param lut              an ImageJ LUT name, or {@link #defaultLut}
+     * @param onlineBackground read the interval once, following the background along it,
+     *                         see {@link RunningBackgroundFunction}. otherwise it's read twice, for its average first
+     * @param index            from {@link FrameIndex#get}, null for the cached one if any
+     */
+    public static ImagePlus processInterval(File inputFile, int startFrame, int endFrame, Roi roi, String lut,
+                                            boolean onlineBackground, FrameIndex index,
+                                            StatusService statusService) throws Exception {
+        Mat avgMat = onlineBackground
+                ? RunningBackgroundFunction.initialBackground(inputFile, statusService)
+                : ParallelZprojector.projectCached(ZprojectFunction.OperationMode.AVG,
+                ZprojectFunction.defaultPercentile(ZprojectFunction.OperationMode.AVG), "invert",
+                () -> ZFHelperMethods.InvertFunction, inputFile, startFrame, endFrame, statusService, index);
+
+        double fps = onlineBackground ? ZFHelperMethods.probeVideo(inputFile).getFrameRate() : 0;
+        List<RunningBackgroundFunction> runningBackgrounds = Collections.synchronizedList(new ArrayList<>());
+        Function<Mat, Mat> subtractFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, avgMat);
+        Function<Mat, Mat> bcFunction = (mat) -> {
+            mat.convertTo(mat, -1, 1, 30); // todo: maybe either calculate beta automatically or let the user choose...
+            return mat;
+        };
+        try {
+            // subtractFunction only reads avgMat and bcFunction keeps no state, the segments can share them.
+            // a running background follows its own frames, so each segment gets one
+            Mat sumMat = ParallelZprojector.project(ZprojectFunction.OperationMode.SUM,
+                    ZprojectFunction.defaultPercentile(ZprojectFunction.OperationMode.SUM), () -> {
+                        Function<Mat, Mat> backgroundFunction = subtractFunction;
+                        if (onlineBackground) {
+                            RunningBackgroundFunction runningBackground = new RunningBackgroundFunction(avgMat, fps);
+                            runningBackgrounds.add(runningBackground);
+                            backgroundFunction = runningBackground;
+                        }
+                        return backgroundFunction.andThen(bcFunction).andThen(ZFHelperMethods.InvertFunction);
+                    },
+                    inputFile, startFrame, endFrame, statusService, ProcessingScheduler.getWorkerThreads(), index);
+
+            Mat heatmapMat;
+            BrightnessLUTFunction brightnessLUTFunction = new BrightnessLUTFunction(roi, lut);
+            try {
+                heatmapMat = brightnessLUTFunction.apply(sumMat); // closes sumMat too
+            } finally {
+                brightnessLUTFunction.close();
+            }
+
+            ImagePlus imp = new ImagePlus(startFrame + "-" + endFrame, BrightnessLUTFunction.toBufferedImage(heatmapMat));
+            heatmapMat.close();
+            return imp;
+        } finally {
+            runningBackgrounds.forEach(RunningBackgroundFunction::close);
+            avgMat.close();
+        }
+    }
+
     private void openFrame() {
         if (inputFile == null || !inputFile.exists() || !inputFile.isFile()) {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
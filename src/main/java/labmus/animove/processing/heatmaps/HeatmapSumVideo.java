@@ -7,14 +7,20 @@ import ij.plugin.frame.RoiManager;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.Checkpoint;
+import labmus.animove.utils.IterationOptions;
+import labmus.animove.utils.ParallelZprojector;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
+import labmus.animove.utils.Profiler;
 import labmus.animove.utils.SimpleRecorder;
 import labmus.animove.utils.functions.BrightnessLUTFunction;
 import labmus.animove.utils.functions.ImageCalculatorFunction;
+import labmus.animove.utils.functions.RunningBackgroundFunction;
 import labmus.animove.utils.functions.SimpleRecorderFunction;
 import labmus.animove.utils.functions.ZprojectFunction;
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
@@ -29,9 +35,8 @@ import org.scijava.widget.Button;
 import org.scijava.widget.FileWidget;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -45,10 +50,12 @@ public class HeatmapSumVideo extends DynamicCommand implements Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
+    // frames the background is computed from
+    private static final int BACKGROUND_SAMPLES = 300;
+
     @Parameter(label = "Input Video", style = FileWidget.OPEN_STYLE, callback = "updateOutputName", persist = false, required = false)
     private File inputFile;
 
@@ -67,18 +74,27 @@ public class HeatmapSumVideo extends DynamicCommand implements Interactive {
     @Parameter(label = "Save output", persist = false)
     private boolean saveOutput = true;
 
+    @Parameter(label = "Crop to ROI", persist = false)
+    private boolean cropToRoi = true;
+
     @Parameter(label = "Initial Frame", min = "1", persist = false)
     private int startFrame = 1;
 
     @Parameter(label = "End Frame (0 = whole video)", min = "0", persist = false)
     private int endFrame = 0;
 
+    @Parameter(label = "Single pass (running background)", persist = false)
+    private boolean onlineBackground = false;
+
     @Parameter(label = "Preview", callback = "generatePreview")
     private Button btn2;
 
     @Parameter(label = "Process", callback = "generateFull")
     private Button btn3;
 
+    @Parameter(label = "Cancel", callback = "cancelProcessing")
+    private Button btn4;
+
     @Parameter
     private UIService uiService;
     @Parameter
@@ -104,6 +120,10 @@ public class HeatmapSumVideo extends DynamicCommand implements Interactive {
         generate(false);
     }
 
+    private void cancelProcessing() {
+        ProcessingScheduler.cancel(this);
+    }
+
     private void generate(boolean doPreview) {
         if (!checkFiles()) {
             return;
@@ -134,54 +154,119 @@ public class HeatmapSumVideo extends DynamicCommand implements Interactive {
             previewImagePlus.close();
         }
 
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        // a new preview cancels the one still running
+        ProcessingScheduler.submit(this, doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Heatmap video", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
 
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(this.format.toLowerCase());
+            boolean save = saveOutput && !doPreview;
+            Profiler profiler = new Profiler();
+            try (PendingOutput output = PendingOutput.to(save ? outputFile : null, this.format.toLowerCase())) {
+                process(inputFile, output.getFile(), lastRoi, cropToRoi, lut,
+                        startFrame, doPreview ? this.startFrame + 9 : this.endFrame, onlineBackground, !doPreview, statusService, profiler);
+                SimpleRecorder.openInIJ(output.commit(), uiService, datasetIOService, !lut.contains(defaultLut), outputFile.getName());
+            }
+            if (save) {
+                profiler.writeReport(outputFile);
+            }
+
+        } catch (CancellationException e) {
+            statusService.showStatus("Cancelled");
+        } catch (Exception e) {
+            log.error(e);
+            uiService.showDialog("A fatal error occurred during processing: \n" + e.getMessage(), ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
+        }
+
+    }
 
-            ZprojectFunction zprojectFunctionAvg = new ZprojectFunction(ZprojectFunction.OperationMode.AVG);
-            ZFHelperMethods.iterateOverFrames(ZFHelperMethods.InvertFunction.andThen(zprojectFunctionAvg), inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
-            Mat avgMat = zprojectFunctionAvg.getResultMat();
+    /**
+     * The whole pipeline, without any UI. Also used by {@link labmus.animove.utils.BatchRunner}.
+     *
+     * @param outputFile       its extension picks the format
+     * @param roi              the target area, in video coordinates. brightness is adjusted inside it
+     * @param lut              an ImageJ LUT name, or {@link HeatmapSumImages#defaultLut}
+     * @param onlineBackground follow the background along the video instead of using a fixed one,
+     *                         see {@link RunningBackgroundFunction}
+     * @param resumable        save checkpoints, and go on from the last one if there's one, see {@link Checkpoint}
+     */
+    public static void process(File inputFile, File outputFile, Roi roi, boolean cropToRoi, String lut,
+                               int startFrame, int endFrame, boolean onlineBackground, boolean resumable,
+                               StatusService statusService, Profiler profiler) throws Exception {
+        // the median of evenly spaced frames: an animal that stays put for a while doesn't leave a ghost in it.
+        // taken from the whole video, like the larvae tracking does: a short range (a preview) can hold a single
+        // keyframe or none at all, and samples are keyframes on inter-coded videos
+        Mat backgroundMat = onlineBackground
+                ? RunningBackgroundFunction.initialBackground(inputFile, statusService)
+                : ParallelZprojector.projectSampled(ZprojectFunction.OperationMode.MEDIAN, "invert", () -> ZFHelperMethods.InvertFunction,
+                inputFile, 1, 0, BACKGROUND_SAMPLES, statusService);
+
+        // only the ROI matters in the end. frames are cropped to it as they are decoded.
+        // the background is kept whole, so its cache entry doesn't depend on the ROI
+        Rect crop = null;
+        Roi frameRoi = roi;
+        if (cropToRoi) {
+            crop = ZFHelperMethods.getRoiBounds(roi, backgroundMat.cols(), backgroundMat.rows());
+            frameRoi = ZFHelperMethods.shiftRoi(roi, crop);
+            Mat croppedBackgroundMat = ZFHelperMethods.cropMat(backgroundMat, crop);
+            backgroundMat.close();
+            backgroundMat = croppedBackgroundMat;
+        }
 
-            Function<Mat, Mat> subtractFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, avgMat);
-            Function<Mat, Mat> bcFunction = (mat) -> {
-                mat.convertTo(mat, -1, 1, 30); // todo: maybe either calculate beta automatically or let the user choose...
-                return mat;
-            };
-            ZprojectFunction zprojectFunctionSum = new ZprojectFunction(ZprojectFunction.OperationMode.SUM, true);
+        double fps = ZFHelperMethods.probeVideo(inputFile).getFrameRate();
+        RunningBackgroundFunction runningBackground = onlineBackground ? new RunningBackgroundFunction(backgroundMat, fps) : null;
+        Function<Mat, Mat> subtractFunction = runningBackground != null ? runningBackground
+                : new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, backgroundMat);
+        Function<Mat, Mat> bcFunction = (mat) -> {
+            mat.convertTo(mat, -1, 1, 30); // todo: maybe either calculate beta automatically or let the user choose...
+            return mat;
+        };
+        ZprojectFunction zprojectFunctionSum = new ZprojectFunction(ZprojectFunction.OperationMode.SUM, true);
+
+        Checkpoint checkpoint = resumable ? Checkpoint.open(inputFile, outputFile, startFrame, statusService,
+                "heatmapVideo", startFrame, endFrame, Checkpoint.roiKey(roi), cropToRoi, lut, onlineBackground) : null;
+        int firstFrame = startFrame;
+        File recordFile = outputFile;
+        if (checkpoint != null) {
+            firstFrame = checkpoint.getNextFrame();
+            recordFile = checkpoint.getSegmentFile();
+            checkpoint.restore(zprojectFunctionSum);
+        }
 
-            BrightnessLUTFunction brightnessLUTFunction = new BrightnessLUTFunction(this.lastRoi, this.lut);
+        BrightnessLUTFunction brightnessLUTFunction = new BrightnessLUTFunction(frameRoi, lut);
 
-            double fps;
-            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-                grabber.start();
-                fps = grabber.getFrameRate();
-            }
-            SimpleRecorderFunction simpleRecorderFunction = new SimpleRecorderFunction(new SimpleRecorder(tempOutputFile, avgMat, fps), uiService);
+        SimpleRecorderFunction simpleRecorderFunction = new SimpleRecorderFunction(new SimpleRecorder(recordFile, backgroundMat, fps), null);
 
-            ZFHelperMethods.iterateOverFrames(subtractFunction
-                    .andThen(bcFunction)
-                    .andThen(ZFHelperMethods.InvertFunction)
-                    .andThen(zprojectFunctionSum)
-                    .andThen(brightnessLUTFunction)
-                    .andThen(simpleRecorderFunction), this.inputFile, this.startFrame, doPreview ? this.startFrame + 9 : this.endFrame, this.statusService);
+        Function<Mat, Mat> processFunction = profiler.wrap("add background", subtractFunction)
+                .andThen(profiler.wrap("brightness", bcFunction))
+                .andThen(profiler.wrap("invert", ZFHelperMethods.InvertFunction))
+                .andThen(profiler.wrap("sum", zprojectFunctionSum))
+                .andThen(profiler.wrap("lut", brightnessLUTFunction))
+                .andThen(simpleRecorderFunction);
+        if (checkpoint != null) {
+            processFunction = processFunction.andThen(checkpoint.createFunction(firstFrame, simpleRecorderFunction, zprojectFunctionSum));
+        }
 
+        try {
+            ZFHelperMethods.iterateOverFrames(processFunction, inputFile, firstFrame, endFrame, statusService,
+                    new IterationOptions().setPipelined(true).setCrop(crop).setProfiler(profiler)
+                            .setIndex(checkpoint != null ? checkpoint.getIndex() : null));
+        } finally {
             brightnessLUTFunction.close();
+            if (crop != null) {
+                crop.close();
+            }
             simpleRecorderFunction.close();
-
-            simpleRecorderFunction.getRecorder().openResultinIJ(uiService, datasetIOService, !lut.contains(defaultLut), outputFile.getName());
-            if (saveOutput && !doPreview) {
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+            if (runningBackground != null) {
+                runningBackground.close();
             }
-
-        } catch (Exception e) {
-            log.error(e);
-            uiService.showDialog("A fatal error occurred during processing: \n" + e.getMessage(), ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
+            backgroundMat.close();
+        }
+        if (checkpoint != null) {
+            checkpoint.finish(outputFile);
         }
-
     }
 
     private void updateOutputName() {
@@ -231,7 +316,7 @@ public class HeatmapSumVideo extends DynamicCommand implements Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
@@ -7,11 +7,16 @@ import ij.plugin.frame.RoiManager;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.Checkpoint;
+import labmus.animove.utils.IterationOptions;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
+import labmus.animove.utils.Profiler;
 import labmus.animove.utils.SimpleRecorder;
+import labmus.animove.utils.VideoInfo;
 import labmus.animove.utils.functions.*;
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
@@ -26,9 +31,7 @@ import org.scijava.widget.Button;
 import org.scijava.widget.FileWidget;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -38,10 +41,14 @@ public class AdultsTrackingProcessing extends DynamicCommand implements Interact
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
+    // the brightness threshold barely moves between frames: a quarter of the pixels, every 5th frame, smoothed
+    private static final int THRESHOLD_SUBSAMPLE = 2;
+    private static final int THRESHOLD_EVERY = 5;
+    private static final double THRESHOLD_SMOOTHING = 0.5;
+
     @Parameter(label = "Input Video", style = FileWidget.OPEN_STYLE, callback = "updateOutputName", persist = false, required = false)
     private File inputFile;
 
@@ -57,6 +64,13 @@ public class AdultsTrackingProcessing extends DynamicCommand implements Interact
     @Parameter(label = "Save output", persist = false)
     private boolean saveOutput = true;
 
+    // tracks will be in the cropped video's coordinates
+    @Parameter(label = "Crop to ROI", persist = false)
+    private boolean cropToRoi = false;
+
+    @Parameter(label = "Lossless AVI (larger, exact)", persist = false)
+    private boolean lossless = false;
+
     @Parameter(label = "Initial Frame", min = "1", persist = false)
     private int startFrame = 1;
 
@@ -123,40 +137,33 @@ public class AdultsTrackingProcessing extends DynamicCommand implements Interact
         if (previewImagePlus != null) {
             previewImagePlus.close();
         }
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        ProcessingScheduler.submit(doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Adults tracking", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(this.format.toLowerCase());
-
-            double fps;
-            int w;
-            int h;
-            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-                grabber.start();
-                fps = grabber.getFrameRate();
-                w = grabber.getImageWidth();
-                h = grabber.getImageHeight();
+            boolean save = saveOutput && !doPreview;
+            Profiler profiler = new Profiler();
+            File resultFile;
+            try (PendingOutput output = PendingOutput.to(save ? outputFile : null, this.format.toLowerCase())) {
+                process(inputFile, output.getFile(), lastRoi, cropToRoi,
+                        startFrame, doPreview ? this.startFrame + 9 : this.endFrame, lossless, !doPreview, statusService, profiler);
+                resultFile = output.commit();
             }
-            SimpleRecorderFunction recorderFunction = new SimpleRecorderFunction(
-                    new SimpleRecorder(tempOutputFile, w, h, fps), uiService);
 
-            Mat mask = ZFHelperMethods.getMaskMatFromRoi(w, h, lastRoi);
-
-            Function<Mat, Mat> processFunction = ZFHelperMethods.InvertFunction
-                    .andThen(new SubtractBackgroundFunction(25) // todo: hardcoded value
-                            .andThen(new AdjustBrightnessUsingThreshold(0.7, mask))
-                            .andThen(recorderFunction));
-
-            ZFHelperMethods.iterateOverFrames(processFunction, inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
-            recorderFunction.close();
-            mask.close();
+            Roi frameRoi = lastRoi;
+            if (cropToRoi) {
+                VideoInfo videoInfo = ZFHelperMethods.probeVideo(inputFile);
+                try (Rect crop = ZFHelperMethods.getRoiBounds(lastRoi, videoInfo.getWidth(), videoInfo.getHeight())) {
+                    frameRoi = ZFHelperMethods.shiftRoi(lastRoi, crop);
+                }
+            }
 
-            recorderFunction.getRecorder().openResultinIJ(uiService, datasetIOService, false, outputFile.getName());
-            IJ.getImage().setRoi(lastRoi);
-            if (saveOutput && !doPreview){
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+            SimpleRecorder.openInIJ(resultFile, uiService, datasetIOService, false, outputFile.getName());
+            IJ.getImage().setRoi(frameRoi);
+            if (save) {
+                profiler.writeReport(outputFile);
             }
             if (!doPreview) {
                 uiService.showDialog("You must set this stack's scale before opening Trackmate! \n Otherwise, all data won't have proper calibrated data.", ZFConfigs.pluginName, DialogPrompt.MessageType.INFORMATION_MESSAGE);
@@ -168,6 +175,60 @@ public class AdultsTrackingProcessing extends DynamicCommand implements Interact
         }
     }
 
+    /**
+     * The whole pipeline, without any UI. Also used by {@link labmus.animove.utils.BatchRunner}.
+     *
+     * @param outputFile its extension picks the format
+     * @param roi        the target area, in video coordinates
+     * @param cropToRoi  the output is cropped to the ROI bounds. tracks will be in the cropped video's coordinates
+     * @param lossless   AVI only, exact gray frames instead of MJPEG, see {@link SimpleRecorder#setLossless}
+     * @param resumable  save checkpoints, and go on from the last one if there's one, see {@link Checkpoint}
+     */
+    public static void process(File inputFile, File outputFile, Roi roi, boolean cropToRoi, int startFrame, int endFrame,
+                               boolean lossless, boolean resumable, StatusService statusService, Profiler profiler) throws Exception {
+        VideoInfo videoInfo = ZFHelperMethods.probeVideo(inputFile);
+        double fps = videoInfo.getFrameRate();
+        // only the ROI matters in the end. frames are cropped to it as they are decoded
+        Rect crop = cropToRoi ? ZFHelperMethods.getRoiBounds(roi, videoInfo.getWidth(), videoInfo.getHeight()) : null;
+        Roi frameRoi = crop == null ? roi : ZFHelperMethods.shiftRoi(roi, crop);
+        int w = crop == null ? videoInfo.getWidth() : crop.width();
+        int h = crop == null ? videoInfo.getHeight() : crop.height();
+        Checkpoint checkpoint = resumable ? Checkpoint.open(inputFile, outputFile, startFrame, statusService,
+                "adultsTracking", startFrame, endFrame, Checkpoint.roiKey(roi), cropToRoi, lossless) : null;
+        int firstFrame = checkpoint != null ? checkpoint.getNextFrame() : startFrame;
+        SimpleRecorderFunction recorderFunction = new SimpleRecorderFunction(
+                new SimpleRecorder(checkpoint != null ? checkpoint.getSegmentFile() : outputFile, w, h, fps)
+                        .setLossless(lossless), null);
+
+        Mat mask = ZFHelperMethods.getMaskMatFromRoi(w, h, frameRoi);
+        AdjustBrightnessUsingThreshold thresholdFunction = new AdjustBrightnessUsingThreshold(0.7, mask,
+                THRESHOLD_SUBSAMPLE, THRESHOLD_EVERY, THRESHOLD_SMOOTHING);
+
+        Function<Mat, Mat> processFunction = profiler.wrap("invert", ZFHelperMethods.InvertFunction)
+                .andThen(profiler.wrap("subtract background", new SubtractBackgroundFunction(25)) // todo: hardcoded value
+                        .andThen(profiler.wrap("threshold brightness", thresholdFunction))
+                        .andThen(recorderFunction));
+        if (checkpoint != null) {
+            processFunction = processFunction.andThen(checkpoint.createFunction(firstFrame, recorderFunction, null));
+        }
+
+        try {
+            ZFHelperMethods.iterateOverFrames(processFunction, inputFile, firstFrame, endFrame, statusService,
+                    new IterationOptions().setPipelined(true).setCrop(crop).setProfiler(profiler)
+                            .setIndex(checkpoint != null ? checkpoint.getIndex() : null));
+        } finally {
+            recorderFunction.close();
+            thresholdFunction.close();
+            mask.close();
+            if (crop != null) {
+                crop.close();
+            }
+        }
+        if (checkpoint != null) {
+            checkpoint.finish(outputFile);
+        }
+    }
+
 
     /**
      * Callback method to update the output filename when an input file changes.
@@ -243,7 +304,7 @@ public class AdultsTrackingProcessing extends DynamicCommand implements Interact
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
@@ -5,13 +5,18 @@ import ij.ImagePlus;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.Checkpoint;
+import labmus.animove.utils.IterationOptions;
+import labmus.animove.utils.ParallelZprojector;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
+import labmus.animove.utils.Profiler;
 import labmus.animove.utils.SimpleRecorder;
 import labmus.animove.utils.functions.ImageCalculatorFunction;
 import labmus.animove.utils.functions.MedianBlurFunction;
+import labmus.animove.utils.functions.RunningBackgroundFunction;
 import labmus.animove.utils.functions.SimpleRecorderFunction;
 import labmus.animove.utils.functions.ZprojectFunction;
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -27,9 +32,8 @@ import org.scijava.widget.Button;
 import org.scijava.widget.FileWidget;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -41,10 +45,12 @@ public class LarvaeTrackingProcessing extends DynamicCommand implements Interact
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
+    // frames the background is computed from
+    private static final int BACKGROUND_SAMPLES = 300;
+
     @Parameter(label = "Input Video", style = FileWidget.OPEN_STYLE, callback = "updateOutputName", persist = false, required = false)
     private File inputFile;
 
@@ -66,12 +72,21 @@ public class LarvaeTrackingProcessing extends DynamicCommand implements Interact
     @Parameter(label = "End Frame (0 = whole video)", min = "0", persist = false)
     private int endFrame = 0;
 
+    @Parameter(label = "Single pass (running background)", persist = false)
+    private boolean onlineBackground = false;
+
+    @Parameter(label = "Lossless AVI (larger, exact)", persist = false)
+    private boolean lossless = false;
+
     @Parameter(label = "Preview", callback = "generatePreview")
     private Button btn2;
 
     @Parameter(label = "Process", callback = "generateFull")
     private Button btn3;
 
+    @Parameter(label = "Cancel", callback = "cancelProcessing")
+    private Button btn4;
+
     @Parameter
     private UIService uiService;
     @Parameter
@@ -96,6 +111,10 @@ public class LarvaeTrackingProcessing extends DynamicCommand implements Interact
         generate(false);
     }
 
+    private void cancelProcessing() {
+        ProcessingScheduler.cancel(this);
+    }
+
     private void generate(boolean doPreview) {
         if (!checkFiles()) {
             return;
@@ -103,58 +122,99 @@ public class LarvaeTrackingProcessing extends DynamicCommand implements Interact
         if (previewImagePlus != null) {
             previewImagePlus.close();
         }
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        // a new preview cancels the one still running
+        ProcessingScheduler.submit(this, doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Larvae tracking", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(this.format.toLowerCase());
-
-            ZprojectFunction zprojectFunctionAvg = new ZprojectFunction(ZprojectFunction.OperationMode.AVG);
-            ZFHelperMethods.iterateOverFrames(ZFHelperMethods.InvertFunction
-                    .andThen(zprojectFunctionAvg), inputFile, startFrame, (doPreview ? this.startFrame + 9 : this.endFrame) * 5, statusService); // todo: 5 times is a guess
-            Mat avgMat = zprojectFunctionAvg.getResultMat();
-
-            ImageCalculatorFunction imageCalculatorFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, avgMat);
-
-            Function<Mat, Mat> bcFunction = (mat) -> {
-                mat.convertTo(mat, -1, 1, 20); // todo: maybe either calculate beta automatically or let the user choose...
-                return mat;
-            };
-
-            MedianBlurFunction medianBlurFunction = new MedianBlurFunction(2);
-
-            double fps;
-            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-                grabber.start();
-                fps = grabber.getFrameRate();
+            boolean save = saveOutput && !doPreview;
+            Profiler profiler = new Profiler();
+            try (PendingOutput output = PendingOutput.to(save ? outputFile : null, this.format.toLowerCase())) {
+                process(inputFile, output.getFile(), startFrame, doPreview ? this.startFrame + 9 : this.endFrame,
+                        onlineBackground, lossless, !doPreview, statusService, profiler);
+                SimpleRecorder.openInIJ(output.commit(), uiService, datasetIOService, false, outputFile.getName());
             }
-            SimpleRecorderFunction recorderFunction = new SimpleRecorderFunction(
-                    new SimpleRecorder(tempOutputFile, avgMat, fps), uiService);
-
-            Function<Mat, Mat> processFunction = imageCalculatorFunction
-                    .andThen(bcFunction)
-                    .andThen(ZFHelperMethods.InvertFunction)
-                    .andThen(medianBlurFunction)
-                    .andThen(recorderFunction);
-
-            ZFHelperMethods.iterateOverFrames(processFunction, inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
-            recorderFunction.close();
-
-            recorderFunction.getRecorder().openResultinIJ(uiService, datasetIOService, false, outputFile.getName());
-            if (saveOutput && !doPreview){
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+            if (save) {
+                profiler.writeReport(outputFile);
             }
             if (!doPreview) {
                 uiService.showDialog("You must set this stack's scale before opening Trackmate! \n Otherwise, all data won't have proper calibrated data.", ZFConfigs.pluginName, DialogPrompt.MessageType.INFORMATION_MESSAGE);
             }
 
+        } catch (CancellationException e) {
+            statusService.showStatus("Cancelled");
         } catch (Exception e) {
             log.error(e);
             uiService.showDialog("A fatal error occurred during processing: \n" + e.getMessage(), ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
         }
     }
 
+    /**
+     * The whole pipeline, without any UI. Also used by {@link labmus.animove.utils.BatchRunner}.
+     *
+     * @param outputFile       its extension picks the format
+     * @param onlineBackground follow the background along the video instead of using a fixed one,
+     *                         see {@link RunningBackgroundFunction}
+     * @param lossless         AVI only, exact gray frames instead of MJPEG, see {@link SimpleRecorder#setLossless}
+     * @param resumable        save checkpoints, and go on from the last one if there's one, see {@link Checkpoint}
+     */
+    public static void process(File inputFile, File outputFile, int startFrame, int endFrame, boolean onlineBackground,
+                               boolean lossless, boolean resumable, StatusService statusService, Profiler profiler) throws Exception {
+        double fps = ZFHelperMethods.probeVideo(inputFile).getFrameRate();
+
+        // larvae move around, so evenly spaced frames from the whole video are enough for the background.
+        // the median ignores a larva sitting still for a while, the average would keep a ghost of it
+        Mat backgroundMat = onlineBackground
+                ? RunningBackgroundFunction.initialBackground(inputFile, statusService)
+                : ParallelZprojector.projectSampled(ZprojectFunction.OperationMode.MEDIAN, "invert", () -> ZFHelperMethods.InvertFunction,
+                inputFile, 1, 0, BACKGROUND_SAMPLES, statusService);
+
+        RunningBackgroundFunction runningBackground = onlineBackground ? new RunningBackgroundFunction(backgroundMat, fps) : null;
+        Function<Mat, Mat> backgroundFunction = runningBackground != null ? runningBackground
+                : new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.ADD, backgroundMat);
+
+        Function<Mat, Mat> bcFunction = (mat) -> {
+            mat.convertTo(mat, -1, 1, 20); // todo: maybe either calculate beta automatically or let the user choose...
+            return mat;
+        };
+
+        MedianBlurFunction medianBlurFunction = new MedianBlurFunction(2);
+
+        Checkpoint checkpoint = resumable ? Checkpoint.open(inputFile, outputFile, startFrame, statusService,
+                "larvaeTracking", startFrame, endFrame, onlineBackground, lossless) : null;
+        int firstFrame = checkpoint != null ? checkpoint.getNextFrame() : startFrame;
+
+        SimpleRecorderFunction recorderFunction = new SimpleRecorderFunction(
+                new SimpleRecorder(checkpoint != null ? checkpoint.getSegmentFile() : outputFile, backgroundMat, fps)
+                        .setLossless(lossless), null);
+
+        Function<Mat, Mat> processFunction = profiler.wrap("add background", backgroundFunction)
+                .andThen(profiler.wrap("brightness", bcFunction))
+                .andThen(profiler.wrap("invert", ZFHelperMethods.InvertFunction))
+                .andThen(profiler.wrap("median", medianBlurFunction))
+                .andThen(recorderFunction);
+        if (checkpoint != null) {
+            processFunction = processFunction.andThen(checkpoint.createFunction(firstFrame, recorderFunction, null));
+        }
+
+        try {
+            ZFHelperMethods.iterateOverFrames(processFunction, inputFile, firstFrame, endFrame, statusService,
+                    new IterationOptions().setPipelined(true).setProfiler(profiler)
+                            .setIndex(checkpoint != null ? checkpoint.getIndex() : null));
+        } finally {
+            recorderFunction.close();
+            if (runningBackground != null) {
+                runningBackground.close();
+            }
+            backgroundMat.close();
+        }
+        if (checkpoint != null) {
+            checkpoint.finish(outputFile);
+        }
+    }
+
 
     /**
      * Callback method to update the output filename when an input file changes.
@@ -230,7 +290,7 @@ public class LarvaeTrackingProcessing extends DynamicCommand implements Interact
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
@@ -0,0 +1,110 @@
+package labmus.animove.tools;
+
+import labmus.animove.ZFConfigs;
+import labmus.animove.utils.BatchRunner;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.log.LogService;
+import org.scijava.module.MutableModuleItem;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a processing pipeline over a folder of videos, or the videos listed in a manifest.
+ * Nothing is opened and no dialog is shown: progress and failures go to the log, and a CSV report is written
+ * at the end. See {@link BatchRunner} for the parameters file.
+ * <p>
+ * Works headless, e.g.:
+ * {@code ImageJ --headless --console --run "Batch Processing" "inputFolder='/data/videos',pipeline='larvaeTracking'"}
+ */
+@SuppressWarnings({"FieldCanBeLocal"})
+@Plugin(type = Command.class, menuPath = ZFConfigs.batchPath)
+public class BatchProcessing extends DynamicCommand {
+
+    @Parameter(label = "Pipeline", initializer = "initPipeline", persist = false)
+    private String pipeline = "";
+
+    @Parameter(label = "Input Folder", style = FileWidget.DIRECTORY_STYLE, persist = false, required = false)
+    private File inputFolder;
+
+    @Parameter(label = "Or Manifest (one video per line)", style = FileWidget.OPEN_STYLE, persist = false, required = false)
+    private File manifest;
+
+    @Parameter(label = "Parameters (.properties)", style = FileWidget.OPEN_STYLE, persist = false, required = false)
+    private File parameters;
+
+    @Parameter(label = "Output Folder (empty = next to each video)", style = FileWidget.DIRECTORY_STYLE, persist = false, required = false)
+    private File outputDir;
+
+    @Parameter(label = "Videos at once (0 = auto)", min = "0", persist = false)
+    private int workers = 0;
+
+    @Parameter
+    private StatusService statusService;
+    @Parameter
+    private LogService log;
+
+    @Override
+    public void run() {
+        try {
+            File input = manifest != null ? manifest : inputFolder;
+            if (input == null || !input.exists()) {
+                log.error("Choose an input folder or a manifest");
+                return;
+            }
+            BatchRunner.Pipeline selected = BatchRunner.Pipeline.fromText(pipeline);
+            if (selected == null) {
+                log.error("Unknown pipeline: " + pipeline);
+                return;
+            }
+            BatchRunner runner = new BatchRunner(selected, BatchRunner.loadParameters(parameters), outputDir, workers);
+            List<File> inputs = BatchRunner.listInputs(input);
+            log.info(String.format("Batch %s: %d videos, %d at a time", selected.getText(), inputs.size(), runner.getWorkers()));
+
+            AtomicInteger done = new AtomicInteger(0);
+            statusService.showStatus(0, inputs.size(), "Batch processing...");
+            List<BatchRunner.Result> results = runner.run(inputs, new BatchRunner.Listener() {
+                @Override
+                public void started(File inputFile) {
+                    log.info("Started " + inputFile.getName());
+                }
+
+                @Override
+                public void finished(BatchRunner.Result result) {
+                    int count = done.incrementAndGet();
+                    String line = String.format(Locale.ROOT, "[%d/%d] %s %s (%.1f s)", count, inputs.size(),
+                            result.getStatus(), result.getInputFile().getName(), result.getSeconds());
+                    if (result.getError() != null) {
+                        log.error(line + ": " + result.getError().getMessage(), result.getError());
+                    } else {
+                        log.info(line);
+                    }
+                    statusService.showStatus(count, inputs.size(), "Batch processing... " + count + "/" + inputs.size());
+                }
+            });
+
+            File reportDir = outputDir != null ? outputDir : input.isDirectory() ? input : input.getAbsoluteFile().getParentFile();
+            File report = BatchRunner.writeReport(results, reportDir);
+            long failed = results.stream().filter(r -> r.getError() != null).count();
+            log.info(String.format("Batch done: %d failed. Report: %s", failed, report.getAbsolutePath()));
+            statusService.showStatus("Done!");
+        } catch (Exception e) {
+            log.error(e);
+        }
+    }
+
+    public void initPipeline() {
+        final MutableModuleItem<String> item =
+                getInfo().getMutableInput("pipeline", String.class);
+        item.setChoices(Arrays.stream(BatchRunner.Pipeline.values()).map(BatchRunner.Pipeline::getText).collect(Collectors.toList()));
+    }
+}
@@ -6,8 +6,9 @@ import ij.plugin.AVI_Reader;
 import ij.plugin.frame.RoiManager;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
+import labmus.animove.utils.Cancellation;
+import labmus.animove.utils.ProcessingScheduler;
+import labmus.animove.utils.VideoInfo;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.Interactive;
@@ -29,7 +30,6 @@ import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.StringJoiner;
-import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,8 +52,7 @@ public class FFmpegPlugin implements Command, Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter
@@ -174,7 +173,7 @@ public class FFmpegPlugin implements Command, Interactive {
                 uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
                 return;
             }
-            Executors.newSingleThreadExecutor().submit(() -> {
+            ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
                 try {
                     if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                         previewImagePlus.close();
@@ -191,12 +190,9 @@ public class FFmpegPlugin implements Command, Interactive {
                 }
             });
 
-            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-                grabber.start();
-                double inputFps = grabber.getFrameRate();
-                if (inputFps > 0) {
-                    this.outputFps = inputFps;
-                }
+            double inputFps = ZFHelperMethods.probeVideo(inputFile).getFrameRate();
+            if (inputFps > 0) {
+                this.outputFps = inputFps;
             }
 
         } catch (Exception e) {
@@ -229,7 +225,8 @@ public class FFmpegPlugin implements Command, Interactive {
         if (!isInputsValid(isPosview)) return;
 
         // We can't do this in the same thread as the UI and ImageJ. Everything will freeze.
-        Executors.newSingleThreadExecutor().submit(() -> executeProcessing(isPosview));
+        ProcessingScheduler.submit(isPosview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "FFmpeg", () -> executeProcessing(isPosview));
 //        new Thread(() -> executeProcessing(isPosview)).start();
     }
 
@@ -370,12 +367,10 @@ public class FFmpegPlugin implements Command, Interactive {
         // Get video properties from input file
         double fps;
         int totalFramesToProcess;
-        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-            grabber.start();
-            fps = grabber.getFrameRate();
-            int finalFrame = (endFrame <= 0 || endFrame > grabber.getLengthInFrames()) ? grabber.getLengthInFrames() : endFrame;
-            totalFramesToProcess = Math.max(0, finalFrame - startFrame) / frameInterval;
-        }
+        VideoInfo videoInfo = ZFHelperMethods.probeVideo(inputFile);
+        fps = videoInfo.getFrameRate();
+        int finalFrame = (endFrame <= 0 || endFrame > videoInfo.getLengthInFrames()) ? videoInfo.getLengthInFrames() : endFrame;
+        totalFramesToProcess = Math.max(0, finalFrame - startFrame) / frameInterval;
 
         // For posview modes, set output to temporary file and process single frame
         if (isPosview) {
@@ -450,23 +445,25 @@ public class FFmpegPlugin implements Command, Interactive {
         log.info("Starting processing for: " + currentOutputFile.getName());
 
         Process process = pb.start();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            // Monitor progress
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String regex = "frame=\\s*(\\d+)";
-                Pattern pattern = Pattern.compile(regex);
-                Matcher matcher = pattern.matcher(line);
-
-                if (matcher.find()) {
-                    statusService.showStatus(Integer.parseInt(matcher.group(1)), totalFramesToProcess,
-                            "Processing " + currentOutputFile.getName());
-                }
+        try (Cancellation.ProcessWatch watch = Cancellation.killOnCancel(process)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                // Monitor progress
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String regex = "frame=\\s*(\\d+)";
+                    Pattern pattern = Pattern.compile(regex);
+                    Matcher matcher = pattern.matcher(line);
+
+                    if (matcher.find()) {
+                        statusService.showStatus(Integer.parseInt(matcher.group(1)), totalFramesToProcess,
+                                "Processing " + currentOutputFile.getName());
+                    }
 
-                log.info(line);
+                    log.info(line);
+                }
             }
+            watch.waitFor();
         }
-        process.waitFor();
 
         // Show posview if needed
         if (isPosview) {
@@ -4,8 +4,8 @@ import ij.ImagePlus;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.functions.ShowEveryFrameFunction;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.Interactive;
@@ -17,7 +17,6 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
 
 import java.io.File;
-import java.util.concurrent.Executors;
 
 @SuppressWarnings({"FieldCanBeLocal"})
 //@Plugin(type = Command.class, menuPath = ZFConfigs.frameExtractorPath)
@@ -27,8 +26,7 @@ public class FrameExtractor implements Command, Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "Input Video", style = "file", callback = "updateOutputName", persist = false, required = false)
@@ -63,7 +61,7 @@ public class FrameExtractor implements Command, Interactive {
     }
 
     private void process() {
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.FULL, "Frame extractor", () -> {
             try {
                 ZFHelperMethods.iterateOverFrames(new ShowEveryFrameFunction(), inputFile, startFrame, endFrame, statusService);
             } catch (Exception e) {
@@ -78,7 +76,7 @@ public class FrameExtractor implements Command, Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
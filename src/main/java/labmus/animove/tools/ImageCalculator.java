@@ -4,11 +4,12 @@ import ij.ImagePlus;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.IterationOptions;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.SimpleRecorder;
 import labmus.animove.utils.functions.ImageCalculatorFunction;
 import labmus.animove.utils.functions.SimpleRecorderFunction;
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.global.opencv_imgcodecs;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.scijava.app.StatusService;
@@ -24,9 +25,8 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -41,8 +41,7 @@ public class ImageCalculator extends DynamicCommand implements Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "Input Video", style = "file", callback = "updateOutputName", persist = false, required = false)
@@ -81,6 +80,9 @@ public class ImageCalculator extends DynamicCommand implements Interactive {
     @Parameter(label = "Process", callback = "generateFull")
     private Button btn3;
 
+    @Parameter(label = "Cancel", callback = "cancelProcessing")
+    private Button btn4;
+
     @Parameter
     private UIService uiService;
     @Parameter
@@ -105,6 +107,10 @@ public class ImageCalculator extends DynamicCommand implements Interactive {
         generate(false);
     }
 
+    private void cancelProcessing() {
+        ProcessingScheduler.cancel(this);
+    }
+
     private void generate(boolean doPreview) {
         if (!checkFiles()) {
             return;
@@ -112,13 +118,13 @@ public class ImageCalculator extends DynamicCommand implements Interactive {
         if (previewImagePlus != null) {
             previewImagePlus.close();
         }
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        // a new preview cancels the one still running
+        ProcessingScheduler.submit(this, doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Image calculator", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(this.format.toLowerCase());
-
             Mat grayImage = imread(imageFile.getAbsolutePath(), opencv_imgcodecs.IMREAD_GRAYSCALE);
 
             if (grayImage.empty()) {
@@ -126,27 +132,27 @@ public class ImageCalculator extends DynamicCommand implements Interactive {
             }
 
             Function<Mat, Mat> inverter = invertVideo ? ZFHelperMethods.InvertFunction : Function.identity();
-            double fps;
-            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputVideoFile)) {
-                grabber.start();
-                fps = grabber.getFrameRate();
-            }
-            SimpleRecorderFunction simpleRecorderFunction = new SimpleRecorderFunction(new SimpleRecorder(tempOutputFile, grayImage, fps), uiService);
-            ImageCalculatorFunction imageCalculatorFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.fromText(this.operation), grayImage);
-
-            ZFHelperMethods.iterateOverFrames(inverter
-                    .andThen(imageCalculatorFunction)
-                    .andThen(simpleRecorderFunction), inputVideoFile, this.startFrame, doPreview ? this.startFrame + 9 : this.endFrame, this.statusService);
-
-            simpleRecorderFunction.close();
+            double fps = ZFHelperMethods.probeVideo(inputVideoFile).getFrameRate();
+            try (PendingOutput output = PendingOutput.to(saveOutput && !doPreview ? outputFile : null, this.format.toLowerCase())) {
+                SimpleRecorderFunction simpleRecorderFunction = new SimpleRecorderFunction(new SimpleRecorder(output.getFile(), grayImage, fps), uiService);
+                ImageCalculatorFunction imageCalculatorFunction = new ImageCalculatorFunction(ImageCalculatorFunction.OperationMode.fromText(this.operation), grayImage);
+
+                try {
+                    ZFHelperMethods.iterateOverFrames(inverter
+                            .andThen(imageCalculatorFunction)
+                            .andThen(simpleRecorderFunction), inputVideoFile, this.startFrame, doPreview ? this.startFrame + 9 : this.endFrame, this.statusService,
+                            new IterationOptions().setPipelined(true));
+                } finally {
+                    // a cancelled run stops halfway, the recorder still has to let go of the file
+                    simpleRecorderFunction.close();
+                    grayImage.close();
+                }
 
-            simpleRecorderFunction.getRecorder().openResultinIJ(uiService, datasetIOService, false, outputFile.getName());
-            if (saveOutput && !doPreview){
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+                SimpleRecorder.openInIJ(output.commit(), uiService, datasetIOService, false, outputFile.getName());
             }
 
-            grayImage.close();
-
+        } catch (CancellationException e) {
+            statusService.showStatus("Cancelled");
         } catch (Exception e) {
             log.error(e);
             uiService.showDialog("An error occurred: " + e.getMessage(), ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
@@ -229,7 +235,7 @@ public class ImageCalculator extends DynamicCommand implements Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
@@ -4,10 +4,12 @@ import ij.ImagePlus;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.IterationOptions;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.SimpleRecorder;
+import labmus.animove.utils.VideoInfo;
 import labmus.animove.utils.functions.SimpleRecorderFunction;
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
@@ -20,8 +22,6 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
 
 import java.io.File;
-import java.nio.file.Files;
-import java.util.concurrent.Executors;
 
 @SuppressWarnings({"FieldCanBeLocal"})
 @Plugin(type = Command.class, menuPath = ZFConfigs.invertPath)
@@ -30,8 +30,7 @@ public class InvertOpenCV extends DynamicCommand implements Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "Input Video", style = "file", callback = "updateOutputName", persist = false, required = false)
@@ -87,31 +86,29 @@ public class InvertOpenCV extends DynamicCommand implements Interactive {
         if (previewImagePlus != null){
             previewImagePlus.close();
         }
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        ProcessingScheduler.submit(doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Invert", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(this.format.toLowerCase());
-
-            double fps;
-            int w;
-            int h;
-            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
-                grabber.start();
-                fps = grabber.getFrameRate();
-                w = grabber.getImageWidth();
-                h = grabber.getImageHeight();
-            }
-            SimpleRecorderFunction simpleRecorderFunction = new SimpleRecorderFunction(new SimpleRecorder(tempOutputFile, w, h, fps), uiService);
-
-            ZFHelperMethods.iterateOverFrames(ZFHelperMethods.InvertFunction
-                    .andThen(simpleRecorderFunction), inputFile, this.startFrame, doPreview ? this.startFrame + 9 : this.endFrame, this.statusService);
-
+            try (PendingOutput output = PendingOutput.to(saveOutput && !doPreview ? outputFile : null, this.format.toLowerCase())) {
+                VideoInfo videoInfo = ZFHelperMethods.probeVideo(inputFile);
+                double fps = videoInfo.getFrameRate();
+                int w = videoInfo.getWidth();
+                int h = videoInfo.getHeight();
+                SimpleRecorderFunction simpleRecorderFunction = new SimpleRecorderFunction(new SimpleRecorder(output.getFile(), w, h, fps), uiService);
+
+                try {
+                    ZFHelperMethods.iterateOverFrames(ZFHelperMethods.InvertFunction
+                            .andThen(simpleRecorderFunction), inputFile, this.startFrame, doPreview ? this.startFrame + 9 : this.endFrame, this.statusService,
+                            new IterationOptions().setPipelined(true));
+                } finally {
+                    // the file has to be complete before it's renamed
+                    simpleRecorderFunction.close();
+                }
 
-            simpleRecorderFunction.getRecorder().openResultinIJ(uiService, datasetIOService, false, outputFile.getName());
-            if (saveOutput && !doPreview){
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+                SimpleRecorder.openInIJ(output.commit(), uiService, datasetIOService, false, outputFile.getName());
             }
 
         } catch (Exception e) {
@@ -168,7 +165,7 @@ public class InvertOpenCV extends DynamicCommand implements Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
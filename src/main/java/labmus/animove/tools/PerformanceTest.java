@@ -7,6 +7,8 @@ import ij.plugin.Zoom;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ProcessingScheduler;
+import labmus.animove.utils.ProgressReporter;
 import labmus.animove.utils.SimpleRecorder;
 import labmus.animove.utils.functions.ZprojectFunction;
 import org.bytedeco.javacpp.indexer.UByteIndexer;
@@ -24,7 +26,6 @@ import org.scijava.ui.DialogPrompt;
 import org.scijava.ui.UIService;
 
 import java.io.File;
-import java.util.concurrent.Executors;
 
 @Plugin(type = Command.class, menuPath = ZFConfigs.performanceTest)
 public class PerformanceTest implements Command {
@@ -32,8 +33,7 @@ public class PerformanceTest implements Command {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     // mjpeg codec gets unhappy with lower resolutions
@@ -62,12 +62,15 @@ public class PerformanceTest implements Command {
             log.info("Temp file: " + tempOutputFile.getAbsolutePath());
             tempOutputFile.deleteOnExit();
 
-            SimpleRecorder recorder = new SimpleRecorder(tempOutputFile, width, height, 30);
+            SimpleRecorder recorder = new SimpleRecorder(tempOutputFile, width, height, 30).setAsync(8);
             recorder.start();
             int numFrames = width * height;
+            ProgressReporter progress = new ProgressReporter(statusService, "Writing frames...", numFrames);
             for (int i = 1; i <= numFrames; i++) {
-                recorder.recordMat(generateFrame(i));
-                statusService.showProgress(i, numFrames);
+                try (Mat frame = generateFrame(i)) {
+                    recorder.recordMat(frame); // copied, it can go right away
+                }
+                progress.update(i);
             }
 //            recorder.openResultinIJ(uiService, datasetIOService);
             recorder.close();
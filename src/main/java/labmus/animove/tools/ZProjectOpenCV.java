@@ -5,8 +5,10 @@ import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import labmus.animove.ZFConfigs;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.ParallelZprojector;
+import labmus.animove.utils.PendingOutput;
+import labmus.animove.utils.ProcessingScheduler;
 import labmus.animove.utils.functions.ZprojectFunction;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
@@ -21,9 +23,7 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
 
 import java.io.File;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -42,8 +42,7 @@ public class ZProjectOpenCV extends DynamicCommand implements Interactive {
     static {
         // this runs on a Menu click
         // reduces loading time for FFmpegFrameGrabber and for OpenCV
-        Executors.newSingleThreadExecutor().submit(() -> ZFConfigs.ffmpeg);
-        Executors.newSingleThreadExecutor().submit(OpenCVFrameConverter.ToMat::new);
+        ProcessingScheduler.warmUp();
     }
 
     @Parameter(label = "Input Video", style = "file", callback = "updateOutputName", persist = false, required = false)
@@ -64,6 +63,9 @@ public class ZProjectOpenCV extends DynamicCommand implements Interactive {
     @Parameter(label = "Processing Mode", callback = "updateOutputName", initializer = "initProc", persist = false)
     private String mode = "";
 
+    @Parameter(label = "Percentile (Percentile mode)", min = "0", max = "100", callback = "updateOutputName", persist = false)
+    private double percentile = 50;
+
     @Parameter(label = "Initial Frame", min = "1", persist = false)
     private int startFrame = 1;
 
@@ -105,30 +107,30 @@ public class ZProjectOpenCV extends DynamicCommand implements Interactive {
         if (previewImagePlus != null) {
             previewImagePlus.close();
         }
-        Executors.newSingleThreadExecutor().submit(() -> this.executeProcessing(doPreview));
+        ProcessingScheduler.submit(doPreview ? ProcessingScheduler.Priority.INTERACTIVE : ProcessingScheduler.Priority.FULL,
+                "Z Project", () -> this.executeProcessing(doPreview));
     }
 
     private void executeProcessing(boolean doPreview) {
         try {
-            File tempOutputFile = ZFHelperMethods.createPluginTempFile(
-                    outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1));
-//            File tempOutputFile = ZFHelperMethods.createPluginTempFileWithReadableName(outputFile.getName());
-            // whatever the user chooses if imwrite supports it
-
-            Function<Mat, Mat> inverter = invertVideo ? ZFHelperMethods.InvertFunction : Function.identity();
-            ZprojectFunction zprojectFunction = new ZprojectFunction(ZprojectFunction.OperationMode.fromText(mode));
-            ZFHelperMethods.iterateOverFrames(inverter.andThen(zprojectFunction), inputFile, startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
-            Mat resultMat = zprojectFunction.getResultMat();
-
-            imwrite(tempOutputFile.getAbsolutePath(), resultMat);
-            resultMat.close();
-
-            ImagePlus imp = new ImagePlus(tempOutputFile.getAbsolutePath());
-            imp.setTitle(outputFile.getName());
-            imp.show();
-
-            if (saveOutput && !doPreview) {
-                Files.copy(tempOutputFile.toPath(), outputFile.toPath());
+            Mat resultMat = process(inputFile, ZprojectFunction.OperationMode.fromText(mode), percentile, invertVideo,
+                    startFrame, doPreview ? this.startFrame + 9 : this.endFrame, statusService);
+
+            boolean save = saveOutput && !doPreview;
+            try (PendingOutput output = PendingOutput.to(save ? outputFile : null,
+                    outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1))) {
+                // whatever the user chooses if imwrite supports it
+                imwrite(output.getFile().getAbsolutePath(), resultMat);
+                resultMat.close();
+
+                // read whole, so an output that isn't saved can be deleted right away
+                ImagePlus imp = new ImagePlus(output.getFile().getAbsolutePath());
+                imp.setTitle(outputFile.getName());
+                imp.show();
+
+                if (save) {
+                    output.commit();
+                }
             }
 
         } catch (Exception e) {
@@ -138,6 +140,19 @@ public class ZProjectOpenCV extends DynamicCommand implements Interactive {
     }
 
 
+    /**
+     * The whole pipeline, without any UI. Also used by {@link labmus.animove.utils.BatchRunner}.
+     *
+     * @param percentile for PERCENTILE, from 0 to 100. ignored by the other modes
+     * @return the projection. close it
+     */
+    public static Mat process(File inputFile, ZprojectFunction.OperationMode mode, double percentile, boolean invertVideo,
+                              int startFrame, int endFrame, StatusService statusService) throws Exception {
+        Function<Mat, Mat> inverter = invertVideo ? ZFHelperMethods.InvertFunction : Function.identity();
+        return ParallelZprojector.projectCached(mode, percentile, invertVideo ? "invert" : "none", () -> inverter,
+                inputFile, startFrame, endFrame, statusService);
+    }
+
     /**
      * Callback method to update the output filename when an input file changes.
      * Generates a unique output filename by appending a mode-matching suffix and the appropriate extension.
@@ -162,6 +177,18 @@ public class ZProjectOpenCV extends DynamicCommand implements Interactive {
             case "Sum":
                 suffix += "sum";
                 break;
+            case "Median":
+                suffix += "median";
+                break;
+            case "Percentile":
+                suffix += "p" + (int) percentile;
+                break;
+            case "Standard Deviation":
+                suffix += "sd";
+                break;
+            case "Variance":
+                suffix += "var";
+                break;
         }
 
         String parentDir = inputFile.getParent();
@@ -188,7 +215,7 @@ public class ZProjectOpenCV extends DynamicCommand implements Interactive {
             uiService.showDialog("Could not open video:\nInvalid file", ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
             return;
         }
-        Executors.newSingleThreadExecutor().submit(() -> {
+        ProcessingScheduler.submit(ProcessingScheduler.Priority.INTERACTIVE, "First frame", () -> {
             try {
                 if (previewImagePlus != null && previewImagePlus.getWindow() != null) {
                     previewImagePlus.close();
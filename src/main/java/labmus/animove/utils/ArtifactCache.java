@@ -0,0 +1,317 @@
+package labmus.animove.utils;
+
+import ij.Prefs;
+import labmus.animove.ZFConfigs;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * Disk cache for things that take a whole pass over a video to compute: backgrounds, projections, metadata, frame indexes.
+ * <p>
+ * Entries are keyed by the input file identity (path, size, last modified time) plus whatever describes
+ * how the artifact was made (operation, frame range...), see {@link #key}. Editing or replacing the video
+ * changes its key, so stale entries are never read, they just age out.
+ * <p>
+ * The least recently used entries are deleted when the cache goes over its budget.
+ * Both the budget and the location are ImageJ preferences ({@value #BUDGET_PREF} in MB, {@value #DIR_PREF}),
+ * and a budget of 0 disables the cache.
+ * <p>
+ * The cache is only an optimization: if it can't be read or written, things are just computed again.
+ */
+public class ArtifactCache {
+
+    public static final String BUDGET_PREF = "animove.cache.maxMB";
+    public static final String DIR_PREF = "animove.cache.dir";
+    private static final double DEFAULT_BUDGET_MB = 1024;
+
+    private static final String MAT_EXTENSION = ".mat";
+    private static final String PROPERTIES_EXTENSION = ".properties";
+    private static final String DATA_EXTENSION = ".bin";
+    private static final int MAT_MAGIC = 0x414D4154; // "AMAT"
+    private static final int MAT_VERSION = 1;
+
+    public interface MatSupplier {
+        Mat get() throws Exception;
+    }
+
+    public interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public static boolean isEnabled() {
+        return getBudgetBytes() > 0;
+    }
+
+    public static long getBudgetBytes() {
+        return (long) (Prefs.get(BUDGET_PREF, DEFAULT_BUDGET_MB) * 1024 * 1024);
+    }
+
+    public static File getCacheDir() {
+        String dir = Prefs.get(DIR_PREF, "");
+        if (!dir.isEmpty()) {
+            return new File(dir);
+        }
+        String prefsDir = Prefs.getPrefsDir();
+        return new File(prefsDir == null ? System.getProperty("java.io.tmpdir") : prefsDir, ZFConfigs.pluginName + "-cache");
+    }
+
+    /**
+     * @param parts anything that changes the artifact: operation, frame range, preprocessing...
+     * @return a key identifying this exact file (path, size and last modified time) and parts
+     */
+    public static String key(File inputFile, Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            sb.append(inputFile.getCanonicalPath());
+        } catch (IOException e) {
+            sb.append(inputFile.getAbsolutePath());
+        }
+        sb.append('|').append(inputFile.length()).append('|').append(inputFile.lastModified());
+        for (Object part : parts) {
+            sb.append('|').append(part);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            // every JVM has SHA-256, this is not happening
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    /**
+     * The returned mat is always a new one, owned by the caller, cached or not.
+     *
+     * @param compute called on a miss. what it returns is stored and then returned
+     */
+    public static Mat getOrCompute(String key, MatSupplier compute) throws Exception {
+        Mat cached = getMat(key);
+        if (cached != null) {
+            return cached;
+        }
+        Mat mat = compute.get();
+        putMat(key, mat);
+        return mat;
+    }
+
+    /**
+     * @return a new mat with the cached contents, or null if there's nothing (readable) cached
+     */
+    public static Mat getMat(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        File file = new File(getCacheDir(), key + MAT_EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAT_MAGIC || in.readInt() != MAT_VERSION) {
+                throw new IOException("Not a cached mat: " + file);
+            }
+            int rows = in.readInt();
+            int cols = in.readInt();
+            int type = in.readInt();
+            long size = in.readLong();
+            byte[] data = new byte[Math.toIntExact(size)];
+            in.readFully(data);
+
+            Mat mat = new Mat(rows, cols, type);
+            if (mat.total() * mat.elemSize() != size) {
+                mat.close();
+                throw new IOException("Corrupted cache entry: " + file);
+            }
+            mat.data().put(data);
+            touch(file);
+            return mat;
+        } catch (Exception e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    public static void putMat(String key, Mat mat) {
+        if (!isEnabled() || mat == null || mat.isNull() || mat.empty()) {
+            return;
+        }
+        Mat continuous = mat;
+        if (!mat.isContinuous()) {
+            continuous = new Mat(mat.rows(), mat.cols(), mat.type());
+            mat.copyTo(continuous);
+        }
+        try {
+            long size = continuous.total() * continuous.elemSize();
+            byte[] data = new byte[Math.toIntExact(size)];
+            BytePointer pointer = continuous.data();
+            pointer.get(data);
+            int rows = continuous.rows();
+            int cols = continuous.cols();
+            int type = continuous.type();
+            write(key + MAT_EXTENSION, out -> {
+                out.writeInt(MAT_MAGIC);
+                out.writeInt(MAT_VERSION);
+                out.writeInt(rows);
+                out.writeInt(cols);
+                out.writeInt(type);
+                out.writeLong(size);
+                out.write(data);
+            });
+        } catch (Exception ignored) {
+            // a full disk shouldn't stop the processing
+        } finally {
+            if (continuous != mat) {
+                continuous.close();
+            }
+        }
+    }
+
+    /**
+     * @return the cached properties, or null if there's nothing cached
+     */
+    public static Properties getProperties(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        File file = new File(getCacheDir(), key + PROPERTIES_EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            Properties properties = new Properties();
+            properties.load(in);
+            touch(file);
+            return properties;
+        } catch (Exception e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    public static void putProperties(String key, Properties properties) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            write(key + PROPERTIES_EXTENSION, out -> properties.store(out, null));
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * For anything that isn't a mat or properties. The reader must check what it reads:
+     * if it throws, the entry is deleted.
+     *
+     * @return what the reader returned, or null if there's nothing (readable) cached
+     */
+    public static <T> T getData(String key, Reader<T> reader) {
+        if (!isEnabled()) {
+            return null;
+        }
+        File file = new File(getCacheDir(), key + DATA_EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            T data = reader.read(in);
+            touch(file);
+            return data;
+        } catch (Exception e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    public static void putData(String key, Writer writer) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            write(key + DATA_EXTENSION, writer);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Writes to a temp file that's then moved over, so a crash never leaves half an entry behind.
+     */
+    private static synchronized void write(String fileName, Writer writer) throws IOException {
+        File dir = getCacheDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + dir);
+        }
+        File tempFile = File.createTempFile(fileName, ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                writer.write(out);
+            }
+            Files.move(tempFile.toPath(), new File(dir, fileName).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+        evict(dir);
+    }
+
+    /**
+     * Least recently used goes first. Reading an entry touches its last modified time.
+     */
+    private static void evict(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(MAT_EXTENSION) || name.endsWith(PROPERTIES_EXTENSION)
+                || name.endsWith(DATA_EXTENSION));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        long budget = getBudgetBytes();
+        if (total <= budget) {
+            return;
+        }
+        // read once: reads on other threads touch entries while this sorts, and the order must not change under it
+        long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastModified[i]));
+        for (int i : order) {
+            if (total <= budget) {
+                break;
+            }
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static void touch(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+    }
+}
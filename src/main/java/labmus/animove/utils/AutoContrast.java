@@ -0,0 +1,154 @@
+package labmus.animove.utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageStatistics;
+import ij.process.StackStatistics;
+import labmus.animove.ZFHelperMethods;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Auto contrast with OpenCV: the min to max of what's under a mask becomes the whole range,
+ * like ImageJ's Apply LUT after an auto contrast with a ROI selected. What's outside the mask is left alone.
+ * <p>
+ * One minMaxLoc and one convertTo per image, where ImageJ goes through StackStatistics, an int table
+ * and a snapshot/applyTable/reset per slice. Stacks are done in parallel, a slice per thread.
+ */
+public class AutoContrast {
+
+    private AutoContrast() {
+    }
+
+    /**
+     * @param mask null for the whole image
+     * @return min and max of mat under mask
+     */
+    public static double[] minMax(Mat mat, Mat mask) {
+        try (DoublePointer min = new DoublePointer(1);
+             DoublePointer max = new DoublePointer(1)) {
+            opencv_core.minMaxLoc(mat, min, max, null, null, mask);
+            return new double[]{min.get(), max.get()};
+        }
+    }
+
+    /**
+     * minMax[0] to minMax[1] of src becomes 0 to range in dst, saturated to depth. Can be in place.
+     * range is one past the top like ImageJ's tables, 256 for 8-bit: the max ends up at 255 either way.
+     * A flat image becomes 0. Values are truncated, like ImageJ's (int) casts.
+     */
+    public static void stretch(Mat src, Mat dst, int depth, double[] minMax, double range) {
+        double scale = minMax[1] > minMax[0] ? range / (minMax[1] - minMax[0]) : 0;
+        // convertTo rounds. half a level down truncates instead, less a hair: exact levels would round half to even,
+        // and convertTo works in float for these depths, a level near 65535 is only good to 1/128
+        double bias = 0.5 - range / (1 << 20);
+        src.convertTo(dst, depth, scale, -minMax[0] * scale - bias);
+    }
+
+    /**
+     * In place, for 8 and 16-bit images. See {@link #stretch}.
+     *
+     * @param mask null for the whole image
+     */
+    public static void apply(Mat mat, Mat mask, double[] minMax, double range) {
+        if (mask == null) {
+            stretch(mat, mat, mat.depth(), minMax, range);
+            return;
+        }
+        try (Mat stretched = new Mat()) {
+            stretch(mat, stretched, mat.depth(), minMax, range);
+            stretched.copyTo(mat, mask);
+        }
+    }
+
+    /**
+     * What ImageJ stretches 16-bit images to: the whole range, unless a default 16-bit range is set.
+     */
+    private static double range16() {
+        int defaultRange = ImagePlus.getDefault16bitRange();
+        return defaultRange > 0 ? Math.pow(2, defaultRange) - 1 : 65536;
+    }
+
+    /**
+     * Stretches the whole stack with its min and max under the ROI, slices in parallel.
+     * Pixel values change, like Apply LUT. RGB and 32-bit stacks only get their display range set, as ImageJ does.
+     *
+     * @param useROI take min and max under the image's ROI, and leave the rest alone. the whole image otherwise
+     */
+    public static void applyToStack(ImagePlus imp, boolean useROI) {
+        int bitDepth = imp.getBitDepth();
+        Roi roi = useROI ? imp.getRoi() : null;
+        if (bitDepth != 8 && bitDepth != 16) {
+            if (!useROI) {
+                imp.deleteRoi();
+            }
+            ImageStatistics stats = new StackStatistics(imp);
+            ImageStack stack = imp.getStack();
+            for (int i = 1; i <= stack.getSize(); i++) {
+                stack.getProcessor(i).setMinAndMax(stats.min, stats.max);
+            }
+            imp.updateAndDraw();
+            return;
+        }
+
+        ImageStack stack = imp.getStack();
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        Mat mask = ZFHelperMethods.getMaskMatFromRoi(width, height, roi);
+        try {
+            // slices are copied to native memory one at a time per thread, not all at once
+            double[] minMax = IntStream.rangeClosed(1, stack.getSize()).parallel()
+                    .mapToObj(i -> {
+                        try (Mat mat = toMat(stack.getPixels(i), width, height)) {
+                            return minMax(mat, mask);
+                        }
+                    })
+                    .reduce((a, b) -> new double[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])})
+                    .orElse(null);
+            if (minMax == null) {
+                return;
+            }
+            double range = bitDepth == 8 ? 256 : range16();
+            IntStream.rangeClosed(1, stack.getSize()).parallel()
+                    .forEach(i -> {
+                        try (Mat mat = toMat(stack.getPixels(i), width, height)) {
+                            apply(mat, mask, minMax, range);
+                            fromMat(mat, stack.getPixels(i));
+                        }
+                    });
+        } finally {
+            if (mask != null) {
+                mask.close();
+            }
+        }
+        if (bitDepth == 16) {
+            imp.setDisplayRange(0, range16() - 1);
+        }
+        imp.updateAndDraw();
+    }
+
+    private static Mat toMat(Object pixels, int width, int height) {
+        if (pixels instanceof byte[]) {
+            Mat mat = new Mat(height, width, opencv_core.CV_8UC1);
+            ((ByteBuffer) mat.createBuffer()).put((byte[]) pixels);
+            return mat;
+        }
+        Mat mat = new Mat(height, width, opencv_core.CV_16UC1);
+        ((ShortBuffer) mat.createBuffer()).put((short[]) pixels);
+        return mat;
+    }
+
+    private static void fromMat(Mat mat, Object pixels) {
+        if (pixels instanceof byte[]) {
+            ((ByteBuffer) mat.createBuffer()).get((byte[]) pixels);
+        } else {
+            ((ShortBuffer) mat.createBuffer()).get((short[]) pixels);
+        }
+    }
+}
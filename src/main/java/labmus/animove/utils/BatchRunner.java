@@ -0,0 +1,491 @@
+package labmus.animove.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import labmus.animove.ZFConfigs;
+import labmus.animove.processing.heatmaps.HeatmapBinaryImage;
+import labmus.animove.processing.heatmaps.HeatmapSumImages;
+import labmus.animove.processing.heatmaps.HeatmapSumVideo;
+import labmus.animove.processing.tracking.AdultsTrackingProcessing;
+import labmus.animove.processing.tracking.LarvaeTrackingProcessing;
+import labmus.animove.tools.ZProjectOpenCV;
+import labmus.animove.utils.functions.ZprojectFunction;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+/**
+ * Runs one of the processing pipelines over many videos, with no dialogs and nothing opened in ImageJ.
+ * The same code the commands run, see their process() methods.
+ * <p>
+ * Inputs are every video in a folder, or the files listed in a manifest (one path per line, relative to the
+ * manifest, # for comments). Parameters come from a properties file:
+ * <ul>
+ *     <li>startFrame, endFrame: same as the dialogs. 1 and 0 (whole video) by default</li>
+ *     <li>format: avi, tiff or mp4, for the pipelines that write videos. avi by default</li>
+ *     <li>roi: an ImageJ .roi file, for the pipelines that need one. a "video name".roi next to a video wins</li>
+ *     <li>cropToRoi: true or false. the dialog's default otherwise</li>
+ *     <li>lut: a LUT name, as in the dialogs</li>
+ *     <li>intervals: for heatmapImages, like "1-5400,15301-20700"</li>
+ *     <li>onlineBackground: true for the single pass background of larvaeTracking and the heatmaps. false by default</li>
+ *     <li>lossless: true for exact gray AVI outputs from larvaeTracking and adultsTracking, instead of MJPEG. false by default</li>
+ *     <li>mode, invert: for zproject. mode is MIN, MAX, AVG, SUM, MEDIAN, PERCENTILE, STD or VARIANCE</li>
+ *     <li>percentile: for zproject in PERCENTILE mode, from 0 to 100. 50 by default</li>
+ * </ul>
+ * Outputs are named like the dialogs name them, next to each video or in one output folder.
+ * A video whose outputs already exist is skipped, so a batch that stopped halfway can just be run again.
+ * Outputs are written next to where they go and renamed once complete, see {@link PendingOutput}:
+ * an output that exists is a whole one.
+ * <p>
+ * From the command line: {@code java -cp <Fiji jars> labmus.animove.utils.BatchRunner
+ * <pipeline> <folder|manifest> [parameters.properties] [output folder]}.
+ * From Fiji, headless or not, see {@link labmus.animove.tools.BatchProcessing}.
+ */
+public class BatchRunner {
+
+    public static final List<String> VIDEO_EXTENSIONS = Arrays.asList("avi", "mp4", "mov", "mkv", "m4v", "wmv", "mpg", "mpeg");
+
+    public enum Pipeline {
+        LARVAE_TRACKING("larvaeTracking"),
+        ADULTS_TRACKING("adultsTracking"),
+        HEATMAP_VIDEO("heatmapVideo"),
+        HEATMAP_IMAGES("heatmapImages"),
+        BINARY_HEATMAP("binaryHeatmap"),
+        ZPROJECT("zproject");
+
+        private final String text;
+
+        Pipeline(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return this.text;
+        }
+
+        /**
+         * @return the matching Pipeline (null if nothing is found)
+         */
+        public static Pipeline fromText(String text) {
+            for (Pipeline pipeline : Pipeline.values()) {
+                if (pipeline.getText().equalsIgnoreCase(text) || pipeline.name().equalsIgnoreCase(text)) {
+                    return pipeline;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Called from the worker threads, so it must be thread-safe.
+     */
+    public interface Listener {
+        void started(File inputFile);
+
+        void finished(Result result);
+    }
+
+    public static class Result {
+        private final File inputFile;
+        private final List<File> outputFiles;
+        private final Exception error;
+        private final boolean skipped;
+        private final double seconds;
+
+        private Result(File inputFile, List<File> outputFiles, Exception error, boolean skipped, double seconds) {
+            this.inputFile = inputFile;
+            this.outputFiles = outputFiles;
+            this.error = error;
+            this.skipped = skipped;
+            this.seconds = seconds;
+        }
+
+        public File getInputFile() {
+            return inputFile;
+        }
+
+        public List<File> getOutputFiles() {
+            return outputFiles;
+        }
+
+        /**
+         * @return null if it went fine
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        public String getStatus() {
+            return error != null ? "failed" : skipped ? "skipped" : "done";
+        }
+    }
+
+    private final Pipeline pipeline;
+    private final Properties parameters;
+    private final File outputDir;
+    private final int workers;
+
+    /**
+     * @param parameters see the class description. can be empty
+     * @param outputDir  null to write outputs next to each video
+     * @param workers    videos processed at once. 0 to size it to the machine, see {@link #defaultWorkers}
+     */
+    public BatchRunner(Pipeline pipeline, Properties parameters, File outputDir, int workers) {
+        this.pipeline = pipeline;
+        this.parameters = parameters;
+        this.outputDir = outputDir;
+        this.workers = workers > 0 ? workers : defaultWorkers();
+    }
+
+    /**
+     * Each video already keeps a few cores busy: decoding, the function chain and encoding run on their own
+     * threads, and projections are split across cores. One video per four cores keeps the machine full
+     * without having every video fight for the same cores and memory.
+     */
+    public static int defaultWorkers() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    }
+
+    /**
+     * @param input a folder (every video in it, not recursive, leaving out our own output videos) or a manifest file
+     */
+    public static List<File> listInputs(File input) throws IOException {
+        List<File> inputs = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    String extension = name.substring(name.lastIndexOf(".") + 1).toLowerCase(Locale.ROOT);
+                    if (file.isFile() && VIDEO_EXTENSIONS.contains(extension) && !isOutput(name)) {
+                        inputs.add(file);
+                    }
+                }
+            }
+            Collections.sort(inputs);
+        } else {
+            for (String line : Files.readAllLines(input.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                File file = new File(line);
+                inputs.add(file.isAbsolute() ? file : new File(input.getAbsoluteFile().getParentFile(), line));
+            }
+        }
+        return inputs;
+    }
+
+    private static boolean isOutput(String fileName) {
+        String baseName = fileName.replaceFirst("[.][^.]+$", "");
+        for (Pipeline pipeline : Pipeline.values()) {
+            if (baseName.matches(".*_" + pipeline.getText() + "(_\\d+)?")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static Properties loadParameters(File parametersFile) throws IOException {
+        Properties parameters = new Properties();
+        if (parametersFile != null) {
+            try (InputStream in = new FileInputStream(parametersFile)) {
+                parameters.load(in);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Processes every input on a pool of {@link #getWorkers()} threads. A failure only stops its own video.
+     *
+     * @param listener can be null
+     * @return one result per input, in the same order
+     */
+    public List<Result> run(List<File> inputs, Listener listener) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, inputs.size())), r -> {
+            Thread thread = new Thread(r, ZFConfigs.pluginName + "-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Result>> futures = new ArrayList<>();
+        try {
+            for (File inputFile : inputs) {
+                futures.add(pool.submit(() -> runOne(inputFile, listener)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause()); // runOne() catches everything
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private Result runOne(File inputFile, Listener listener) {
+        if (listener != null) {
+            listener.started(inputFile);
+        }
+        long start = System.nanoTime();
+        List<File> outputFiles = outputFilesFor(inputFile);
+        Result result;
+        if (outputFiles.stream().allMatch(File::exists)) {
+            result = new Result(inputFile, outputFiles, null, true, 0);
+        } else {
+            Exception error = null;
+            try {
+                if (!inputFile.isFile()) {
+                    throw new IOException("File not found: " + inputFile.getAbsolutePath());
+                }
+                process(inputFile, outputFiles);
+            } catch (Exception e) {
+                error = e;
+            }
+            result = new Result(inputFile, outputFiles, error, false, (System.nanoTime() - start) / 1e9);
+        }
+        if (listener != null) {
+            listener.finished(result);
+        }
+        return result;
+    }
+
+    private List<File> outputFilesFor(File inputFile) {
+        File dir = outputDir != null ? outputDir : inputFile.getAbsoluteFile().getParentFile();
+        String baseName = inputFile.getName().replaceFirst("[.][^.]+$", "");
+        String format = parameters.getProperty("format", "avi").toLowerCase(Locale.ROOT);
+        switch (pipeline) {
+            case LARVAE_TRACKING:
+            case ADULTS_TRACKING:
+            case HEATMAP_VIDEO:
+                return Collections.singletonList(new File(dir, baseName + "_" + pipeline.getText() + "." + format));
+            case HEATMAP_IMAGES:
+                List<File> files = new ArrayList<>();
+                for (int[] interval : getIntervals()) {
+                    files.add(new File(dir, baseName + "_" + interval[0] + "-" + interval[1] + ".tif"));
+                }
+                return files;
+            case BINARY_HEATMAP:
+                return Collections.singletonList(new File(dir, baseName + "_binaryHeatmap.tif"));
+            case ZPROJECT:
+                String suffix = getMode() == ZprojectFunction.OperationMode.PERCENTILE
+                        ? "p" + (int) getPercentile() : getMode().name().toLowerCase(Locale.ROOT);
+                return Collections.singletonList(new File(dir, baseName + "_" + suffix + ".tif"));
+            default:
+                throw new IllegalStateException("Unknown pipeline: " + pipeline);
+        }
+    }
+
+    private void process(File inputFile, List<File> outputFiles) throws Exception {
+        int startFrame = Integer.parseInt(parameters.getProperty("startFrame", "1"));
+        int endFrame = Integer.parseInt(parameters.getProperty("endFrame", "0"));
+        String lut = parameters.getProperty("lut", HeatmapSumImages.defaultLut);
+        File outputFile = outputFiles.get(0);
+        String extension = outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1);
+
+        switch (pipeline) {
+            case LARVAE_TRACKING:
+            case ADULTS_TRACKING:
+            case HEATMAP_VIDEO: {
+                Profiler profiler = new Profiler();
+                // written next to where it goes, it only gets its name once complete
+                try (PendingOutput output = PendingOutput.to(outputFile, extension)) {
+                    if (pipeline == Pipeline.LARVAE_TRACKING) {
+                        LarvaeTrackingProcessing.process(inputFile, output.getFile(), startFrame, endFrame,
+                                getBoolean("onlineBackground", false), getBoolean("lossless", false), true, null, profiler);
+                    } else if (pipeline == Pipeline.ADULTS_TRACKING) {
+                        AdultsTrackingProcessing.process(inputFile, output.getFile(), getRoi(inputFile),
+                                getBoolean("cropToRoi", false), startFrame, endFrame, getBoolean("lossless", false),
+                                true, null, profiler);
+                    } else {
+                        HeatmapSumVideo.process(inputFile, output.getFile(), getRoi(inputFile),
+                                getBoolean("cropToRoi", true), lut, startFrame, endFrame,
+                                getBoolean("onlineBackground", false), true, null, profiler);
+                    }
+                    output.commit();
+                }
+                profiler.writeReport(outputFile);
+                break;
+            }
+            case HEATMAP_IMAGES: {
+                Roi roi = getRoi(inputFile);
+                List<int[]> intervals = getIntervals();
+                for (int i = 0; i < intervals.size(); i++) {
+                    if (outputFiles.get(i).exists()) {
+                        continue;
+                    }
+                    ImagePlus imp = HeatmapSumImages.processInterval(inputFile, intervals.get(i)[0], intervals.get(i)[1], roi, lut,
+                            getBoolean("onlineBackground", false), null, null);
+                    try (PendingOutput output = PendingOutput.to(outputFiles.get(i), "tif")) {
+                        IJ.save(imp, output.getFile().getAbsolutePath());
+                        output.commit();
+                    } finally {
+                        imp.close();
+                    }
+                }
+                break;
+            }
+            case BINARY_HEATMAP:
+            case ZPROJECT: {
+                Mat resultMat = pipeline == Pipeline.BINARY_HEATMAP
+                        ? HeatmapBinaryImage.process(inputFile, startFrame, endFrame, null)
+                        : ZProjectOpenCV.process(inputFile, getMode(), getPercentile(), getBoolean("invert", false),
+                        startFrame, endFrame, null);
+                try (PendingOutput output = PendingOutput.to(outputFile, extension)) {
+                    imwrite(output.getFile().getAbsolutePath(), resultMat);
+                    output.commit();
+                } finally {
+                    resultMat.close();
+                }
+                break;
+            }
+        }
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(parameters.getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    private double getPercentile() {
+        return Double.parseDouble(parameters.getProperty("percentile", "50"));
+    }
+
+    private ZprojectFunction.OperationMode getMode() {
+        String text = parameters.getProperty("mode", ZprojectFunction.OperationMode.AVG.name());
+        ZprojectFunction.OperationMode mode = ZprojectFunction.OperationMode.fromText(text);
+        return mode != null ? mode : ZprojectFunction.OperationMode.valueOf(text.toUpperCase(Locale.ROOT));
+    }
+
+    private List<int[]> getIntervals() {
+        List<int[]> intervals = new ArrayList<>();
+        for (String interval : parameters.getProperty("intervals", "1-5400,15301-20700,30601-36000").split(",")) {
+            String[] a = interval.trim().split("-");
+            if (a.length != 2) {
+                throw new IllegalArgumentException("Invalid interval: " + interval);
+            }
+            intervals.add(new int[]{Integer.parseInt(a[0].trim()), Integer.parseInt(a[1].trim())});
+        }
+        return intervals;
+    }
+
+    private Roi getRoi(File inputFile) throws IOException {
+        String baseName = inputFile.getName().replaceFirst("[.][^.]+$", "");
+        File roiFile = new File(inputFile.getAbsoluteFile().getParentFile(), baseName + ".roi");
+        if (!roiFile.isFile() && parameters.getProperty("roi") != null) {
+            roiFile = new File(parameters.getProperty("roi"));
+        }
+        if (!roiFile.isFile()) {
+            throw new IOException("No ROI for this video. Set \"roi\" in the parameters or save one as " + baseName + ".roi");
+        }
+        Roi roi = RoiDecoder.open(roiFile.getAbsolutePath());
+        if (roi == null) {
+            throw new IOException("Could not read ROI: " + roiFile.getAbsolutePath());
+        }
+        return roi;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * One line per video: status, time, outputs and error.
+     *
+     * @return the report, in dir, named after the time it was written
+     */
+    public static File writeReport(List<Result> results, File dir) throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File reportFile = new File(dir, ZFConfigs.pluginName + "_batch_" + timestamp + ".csv");
+        try (PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+            out.println("input,status,seconds,outputs,error");
+            for (Result result : results) {
+                StringBuilder outputs = new StringBuilder();
+                for (File outputFile : result.getOutputFiles()) {
+                    outputs.append(outputs.length() > 0 ? ";" : "").append(outputFile.getName());
+                }
+                String error = result.getError() == null ? "" : String.valueOf(result.getError().getMessage());
+                out.println(String.format(Locale.ROOT, "%s,%s,%.1f,%s,%s", csv(result.getInputFile().getAbsolutePath()),
+                        result.getStatus(), result.getSeconds(), csv(outputs.toString()), csv(error)));
+            }
+        }
+        return reportFile;
+    }
+
+    private static String csv(String value) {
+        return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || Pipeline.fromText(args[0]) == null) {
+            System.err.println("Usage: BatchRunner <pipeline> <folder|manifest> [parameters.properties] [output folder]");
+            System.err.println("Pipelines: " + Arrays.toString(Arrays.stream(Pipeline.values()).map(Pipeline::getText).toArray()));
+            System.exit(2);
+        }
+        File input = new File(args[1]);
+        Properties parameters = loadParameters(args.length > 2 ? new File(args[2]) : null);
+        File outputDir = args.length > 3 ? new File(args[3]) : null;
+        BatchRunner runner = new BatchRunner(Pipeline.fromText(args[0]), parameters, outputDir, 0);
+
+        List<File> inputs = listInputs(input);
+        System.out.println(inputs.size() + " videos, " + runner.getWorkers() + " at a time");
+        int[] done = {0};
+        List<Result> results = runner.run(inputs, new Listener() {
+            @Override
+            public void started(File inputFile) {
+                System.out.println("started  " + inputFile.getName());
+            }
+
+            @Override
+            public synchronized void finished(Result result) {
+                done[0]++;
+                String line = String.format(Locale.ROOT, "[%d/%d] %s %s (%.1f s)", done[0], inputs.size(),
+                        result.getStatus(), result.getInputFile().getName(), result.getSeconds());
+                if (result.getError() != null) {
+                    System.err.println(line + ": " + result.getError().getMessage());
+                } else {
+                    System.out.println(line);
+                }
+            }
+        });
+
+        File reportDir = outputDir != null ? outputDir : input.isDirectory() ? input : input.getAbsoluteFile().getParentFile();
+        System.out.println("Report: " + writeReport(results, reportDir).getAbsolutePath());
+        System.exit(results.stream().anyMatch(r -> r.getError() != null) ? 1 : 0);
+    }
+}
@@ -0,0 +1,129 @@
+package labmus.animove.utils;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Asks a job to stop. Nothing is interrupted: the frame loops check it between frames
+ * and throw a {@link CancellationException}, which unwinds the job like any other error.
+ * <p>
+ * Each {@link ProcessingScheduler} job has one, set as {@link #current()} on its thread.
+ * Code that starts more threads hands it over with {@link #setCurrent}, like {@link Profiler}.
+ */
+public class Cancellation {
+
+    private static final ThreadLocal<Cancellation> current = new ThreadLocal<>();
+
+    private volatile boolean cancelled = false;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return the cancellation of the job running on this thread. outside a job, one that never gets cancelled
+     */
+    public static Cancellation current() {
+        Cancellation cancellation = current.get();
+        return cancellation != null ? cancellation : new Cancellation();
+    }
+
+    /**
+     * Makes this the cancellation {@link #current()} returns on this thread, null to clear it.
+     */
+    public static void setCurrent(Cancellation cancellation) {
+        if (cancellation == null) {
+            current.remove();
+        } else {
+            current.set(cancellation);
+        }
+    }
+
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if cancelled
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("Cancelled");
+        }
+    }
+
+    /**
+     * For what can't check by itself, like a subprocess. Runs right away if already cancelled.
+     * Remove it with {@link #removeOnCancel} once there's nothing left to stop, jobs can run for hours.
+     */
+    public void onCancel(Runnable listener) {
+        listeners.add(listener);
+        synchronized (this) {
+            if (!cancelled) {
+                return;
+            }
+        }
+        if (listeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    public void removeOnCancel(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Kills the process if the current job is cancelled, until the returned watch is closed.
+     * <pre>{@code
+     * try (Cancellation.ProcessWatch watch = Cancellation.killOnCancel(process)) {
+     *     // read its output
+     *     int exitCode = watch.waitFor();
+     * }
+     * }</pre>
+     */
+    public static ProcessWatch killOnCancel(Process process) {
+        return new ProcessWatch(current(), process);
+    }
+
+    public static class ProcessWatch implements AutoCloseable {
+
+        private final Cancellation cancellation;
+        private final Process process;
+        private final Runnable kill;
+
+        private ProcessWatch(Cancellation cancellation, Process process) {
+            this.cancellation = cancellation;
+            this.process = process;
+            this.kill = process::destroyForcibly;
+            cancellation.onCancel(kill);
+        }
+
+        /**
+         * Waits for the process and stops watching it.
+         *
+         * @return its exit code
+         * @throws CancellationException if it was killed, so it isn't mistaken for one that finished
+         */
+        public int waitFor() throws InterruptedException {
+            int exitCode = process.waitFor();
+            close();
+            cancellation.check();
+            return exitCode;
+        }
+
+        @Override
+        public void close() {
+            cancellation.removeOnCancel(kill);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package labmus.animove.utils;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.Roi;
+import labmus.animove.ZFConfigs;
+import labmus.animove.utils.functions.SimpleRecorderFunction;
+import labmus.animove.utils.functions.ZprojectFunction;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.scijava.app.StatusService;
+
+import java.awt.Polygon;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Function;
+
+/**
+ * Lets a long frame loop that writes a video go on from where it stopped, after a crash or a Fiji restart.
+ * <p>
+ * Every few minutes ({@value #INTERVAL_PREF}, 10 by default, 0 disables it) the output segment being written
+ * is closed and a new one started, and the frame position is saved along with the state of the accumulating
+ * function, if there's one. A run of the same job (same video and settings) finds the checkpoint, restores
+ * the state and starts right after the last saved frame. At the end the segments are joined into the output,
+ * without re-encoding, and the checkpoint is deleted.
+ * <p>
+ * Usage, in a process() method:
+ * <pre>
+ *     Checkpoint checkpoint = Checkpoint.open(...); // null when off
+ *     int firstFrame = checkpoint != null ? checkpoint.getNextFrame() : startFrame;
+ *     // record to checkpoint.getSegmentFile(), restore() the accumulator,
+ *     // put createFunction() after the recorder and iterate from firstFrame, with getIndex()
+ *     checkpoint.finish(outputFile); // once the recorder is closed
+ * </pre>
+ * Checkpoints live in their own folder next to the cache, not in it: the cache may drop things whenever it wants.
+ * Only AVI and MP4 can be joined that way, TIFF outputs run without checkpoints.
+ */
+public class Checkpoint {
+
+    public static final String INTERVAL_PREF = "animove.checkpoint.minutes";
+    private static final double DEFAULT_INTERVAL_MINUTES = 10;
+    private static final String STATE_FILE = "checkpoint.properties";
+
+    private final File dir;
+    private final String extension;
+    private final long intervalNanos;
+
+    // what the last checkpoint saved
+    private final int nextFrame;
+    private final String accumulatorFile;
+    // for the exact seek to nextFrame, set by open() when resuming
+    private FrameIndex index = null;
+
+    // processing thread only
+    private int currentSegment;
+    private int framesInSegment = 0;
+
+    private Checkpoint(File dir, String extension, long intervalNanos, int startFrame) throws IOException {
+        this.dir = dir;
+        this.extension = extension;
+        this.intervalNanos = intervalNanos;
+        Properties state = new Properties();
+        File stateFile = new File(dir, STATE_FILE);
+        if (stateFile.isFile()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+            }
+        }
+        this.nextFrame = Integer.parseInt(state.getProperty("nextFrame", String.valueOf(startFrame)));
+        this.currentSegment = Integer.parseInt(state.getProperty("segments", "0"));
+        this.accumulatorFile = state.getProperty("accumulator");
+    }
+
+    /**
+     * Finds the checkpoint of this job, or starts a new one. A resumed job needs exact seeks,
+     * so the video is indexed first if it wasn't (see {@link FrameIndex}).
+     *
+     * @param outputFile only its extension matters
+     * @param job        name of the pipeline and every setting that changes its output, frame range included
+     * @return null if checkpoints are off, or the output can't be split in segments
+     */
+    public static Checkpoint open(File inputFile, File outputFile, int startFrame, StatusService statusService,
+                                  Object... job) throws Exception {
+        double minutes = Prefs.get(INTERVAL_PREF, DEFAULT_INTERVAL_MINUTES);
+        SimpleRecorder.Format format = SimpleRecorder.formatOf(outputFile);
+        if (minutes <= 0 || format == SimpleRecorder.Format.TIFF) {
+            return null;
+        }
+        String extension = outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1);
+        Object[] parts = new Object[job.length + 2];
+        parts[0] = "checkpoint";
+        parts[1] = extension;
+        System.arraycopy(job, 0, parts, 2, job.length);
+        File dir = new File(getCheckpointsDir(), ArtifactCache.key(inputFile, parts));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create checkpoint directory: " + dir);
+        }
+        Checkpoint checkpoint = new Checkpoint(dir, extension, (long) (minutes * 60e9), startFrame);
+        if (checkpoint.isResumed()) {
+            IJ.log(ZFConfigs.pluginName + ": resuming " + inputFile.getName() + " from frame " + checkpoint.getNextFrame());
+            checkpoint.index = FrameIndex.get(inputFile, statusService);
+        }
+        return checkpoint;
+    }
+
+    public static File getCheckpointsDir() {
+        return new File(ArtifactCache.getCacheDir().getAbsoluteFile().getParentFile(), ZFConfigs.pluginName + "-checkpoints");
+    }
+
+    /**
+     * Something that identifies a ROI, for the job passed to {@link #open}.
+     */
+    public static String roiKey(Roi roi) {
+        if (roi == null) {
+            return "none";
+        }
+        Polygon polygon = roi.getPolygon();
+        StringBuilder sb = new StringBuilder(roi.getTypeAsString());
+        for (int i = 0; i < polygon.npoints; i++) {
+            sb.append(';').append(polygon.xpoints[i]).append(',').append(polygon.ypoints[i]);
+        }
+        return sb.toString();
+    }
+
+    public boolean isResumed() {
+        return currentSegment > 0;
+    }
+
+    /**
+     * @return the index a resumed job must iterate with ({@link IterationOptions#setIndex}), null if it's not resumed
+     */
+    public FrameIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return where to start iterating: the first frame that isn't in a saved segment
+     */
+    public int getNextFrame() {
+        return nextFrame;
+    }
+
+    /**
+     * @return where the recorder should write
+     */
+    public File getSegmentFile() {
+        return segmentFile(currentSegment);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("part%04d.%s", segment, extension));
+    }
+
+    /**
+     * Puts the accumulator back as it was at the last checkpoint. Does nothing on a new job.
+     */
+    public void restore(ZprojectFunction accumulator) throws IOException {
+        if (accumulatorFile == null) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, accumulatorFile))))) {
+            accumulator.readState(in);
+        }
+    }
+
+    /**
+     * The function that saves checkpoints. It goes at the end of the chain, after the recorder.
+     *
+     * @param firstFrame  where this run starts, see {@link #getNextFrame}
+     * @param accumulator its state is saved too. can be null
+     */
+    public Function<Mat, Mat> createFunction(int firstFrame, SimpleRecorderFunction recorderFunction, ZprojectFunction accumulator) {
+        long[] lastSave = {System.nanoTime()};
+        int[] count = {0};
+        return mat -> {
+            count[0]++;
+            framesInSegment++;
+            long now = System.nanoTime();
+            if (now - lastSave[0] >= intervalNanos) {
+                lastSave[0] = now;
+                try {
+                    save(firstFrame + count[0], recorderFunction, accumulator);
+                } catch (Exception e) {
+                    throw new RuntimeException("Could not save a checkpoint: " + e.getMessage(), e);
+                }
+            }
+            return mat;
+        };
+    }
+
+    /**
+     * The accumulator is saved right away, on the processing thread, so it matches the frame.
+     * The checkpoint only counts once the recorder closed the segment, see {@link SimpleRecorderFunction#rotate}.
+     */
+    private void save(int frame, SimpleRecorderFunction recorderFunction, ZprojectFunction accumulator) throws Exception {
+        String savedAccumulator = null;
+        if (accumulator != null) {
+            savedAccumulator = "accumulator-" + frame + ".bin";
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, savedAccumulator))))) {
+                accumulator.writeState(out);
+            }
+        }
+        int segments = currentSegment + 1;
+        currentSegment = segments;
+        framesInSegment = 0;
+        String accumulatorName = savedAccumulator;
+        recorderFunction.rotate(segmentFile(segments), () -> commit(frame, segments, accumulatorName));
+    }
+
+    private void commit(int frame, int segments, String accumulatorName) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("nextFrame", String.valueOf(frame));
+        state.setProperty("segments", String.valueOf(segments));
+        if (accumulatorName != null) {
+            state.setProperty("accumulator", accumulatorName);
+        }
+        File tempFile = File.createTempFile(STATE_FILE, ".tmp", dir);
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            state.store(out, null);
+        }
+        Files.move(tempFile.toPath(), new File(dir, STATE_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        File[] oldAccumulators = dir.listFiles((d, name) -> name.startsWith("accumulator-") && !name.equals(accumulatorName));
+        if (oldAccumulators != null) {
+            for (File file : oldAccumulators) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Joins the segments into outputFile and deletes the checkpoint. Call it once the recorder is closed.
+     */
+    public void finish(File outputFile) throws Exception {
+        List<File> segments = new ArrayList<>();
+        for (int i = 0; i <= currentSegment; i++) {
+            // a checkpoint on the very last frame leaves an empty segment behind
+            if (i < currentSegment || framesInSegment > 0) {
+                segments.add(segmentFile(i));
+            }
+        }
+        if (segments.size() == 1) {
+            Files.move(segments.get(0).toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            concat(segments, outputFile);
+        }
+        delete();
+    }
+
+    private void concat(List<File> segments, File outputFile) throws Exception {
+        File list = new File(dir, "segments.txt");
+        try (PrintWriter out = new PrintWriter(list, "UTF-8")) {
+            for (File segment : segments) {
+                out.println("file '" + segment.getAbsolutePath().replace("'", "'\\''") + "'");
+            }
+        }
+        ProcessBuilder pb = new ProcessBuilder(ZFConfigs.ffmpeg, "-y", "-f", "concat", "-safe", "0",
+                "-i", list.getAbsolutePath(), "-c", "copy", outputFile.getAbsolutePath());
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        StringBuilder output = new StringBuilder();
+        int exitCode;
+        try (Cancellation.ProcessWatch watch = Cancellation.killOnCancel(process)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
+            }
+            exitCode = watch.waitFor();
+        }
+        if (exitCode != 0) {
+            throw new IOException("Could not join the output segments:\n" + output);
+        }
+    }
+
+    /**
+     * Throws the checkpoint away, segments included.
+     */
+    public void delete() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+}
@@ -0,0 +1,79 @@
+package labmus.animove.utils;
+
+import labmus.animove.ZFConfigs;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A single thread that runs tasks in the order they were submitted.
+ * The queue is bounded: submitting blocks while the thread is behind, so memory stays flat.
+ * <p>
+ * Every task runs, even after a failure, so tasks can always release what they hold.
+ * The first failure is thrown back to the submitter on the next call.
+ */
+public class EncoderStage {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static final Task END = () -> {
+    };
+
+    private final BlockingQueue<Task> queue;
+    private final Thread thread;
+    private volatile Exception error = null;
+    private boolean drained = false;
+
+    public EncoderStage(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.thread = new Thread(this::loop, ZFConfigs.pluginName + "-encoder");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void loop() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == END) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+    }
+
+    public void submit(Task task) throws Exception {
+        rethrow();
+        queue.put(task);
+    }
+
+    /**
+     * Waits for every submitted task to finish. No task can be submitted after this.
+     */
+    public void drain() throws Exception {
+        if (!drained) {
+            drained = true;
+            queue.put(END);
+            thread.join();
+        }
+        rethrow();
+    }
+
+    private void rethrow() throws Exception {
+        if (error != null) {
+            throw error;
+        }
+    }
+}
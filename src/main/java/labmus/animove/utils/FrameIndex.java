@@ -0,0 +1,230 @@
+package labmus.animove.utils;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.scijava.app.StatusService;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Timestamp of every frame in a video, and which frames are keyframes. Built once per video by decoding it
+ * (no conversion, see {@link #build}), or for free while a whole video is read from start to end.
+ * Kept in the {@link ArtifactCache}, so it's dropped when the video changes.
+ * <p>
+ * With it, {@link FrameReader} knows exactly how many frames there are, and seeks to a frame by jumping to the
+ * keyframe before it and decoding forward only from there. Frames are matched by timestamp, the same ones
+ * the grabber reports, so positions are exact even where grabber.getLengthInFrames() and setFrameNumber() aren't.
+ * <p>
+ * Frame numbers here are 0-indexed.
+ */
+public class FrameIndex {
+
+    private static final int MAGIC = 0x41494458; // "AIDX"
+    private static final int VERSION = 1;
+
+    private final long[] timestamps; // microseconds, same as Frame.timestamp. strictly increasing
+    private final int[] keyframes; // frame numbers, increasing. the first frame is always one
+
+    private FrameIndex(long[] timestamps, int[] keyframes) {
+        this.timestamps = timestamps;
+        this.keyframes = keyframes;
+    }
+
+    /**
+     * @return the index, or null if the video hasn't been indexed yet
+     */
+    public static FrameIndex getCached(File inputFile) {
+        return ArtifactCache.getData(key(inputFile), FrameIndex::read);
+    }
+
+    /**
+     * Returns the cached index, building it first if needed (a full decode of the video).
+     *
+     * @return null if the video can't be indexed (timestamps going back, for instance)
+     */
+    public static FrameIndex get(File inputFile, StatusService statusService) throws Exception {
+        FrameIndex index = getCached(inputFile);
+        if (index != null) {
+            return index;
+        }
+        return build(inputFile, statusService);
+    }
+
+    /**
+     * Decodes the whole video, without converting any frame, and caches the result.
+     *
+     * @return null if the video can't be indexed (timestamps going back, for instance)
+     */
+    public static FrameIndex build(File inputFile, StatusService statusService) throws Exception {
+        Builder builder = new Builder(inputFile);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
+            grabber.start();
+            ProgressReporter progress = new ProgressReporter(statusService, "Indexing frames...", grabber.getLengthInFrames());
+            Frame frame;
+            Cancellation cancellation = Cancellation.current();
+            while ((frame = grabber.grabFrame(false, true, false, false, false)) != null) {
+                cancellation.check();
+                builder.add(frame);
+                progress.update(builder.count);
+            }
+        }
+        return builder.finish();
+    }
+
+    private static String key(File inputFile) {
+        return ArtifactCache.key(inputFile, "frameIndex", VERSION);
+    }
+
+    public int getFrameCount() {
+        return timestamps.length;
+    }
+
+    public long getTimestamp(int frame) {
+        return timestamps[frame];
+    }
+
+    /**
+     * @return the frame with this exact timestamp, or else the last one before it (0 if there's none)
+     */
+    public int getFrame(long timestamp) {
+        int i = Arrays.binarySearch(timestamps, timestamp);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    /**
+     * @return the last keyframe at or before frame
+     */
+    public int getKeyframeBefore(int frame) {
+        int i = Arrays.binarySearch(keyframes, frame);
+        return i >= 0 ? keyframes[i] : keyframes[Math.max(0, -i - 2)];
+    }
+
+    /**
+     * @return the first keyframe at or after frame, or the frame count if there's none
+     */
+    public int getKeyframeAfter(int frame) {
+        int i = Arrays.binarySearch(keyframes, frame);
+        if (i >= 0) {
+            return keyframes[i];
+        }
+        i = -i - 1;
+        return i < keyframes.length ? keyframes[i] : timestamps.length;
+    }
+
+    /**
+     * @return how many keyframes there are in [from, to)
+     */
+    public int countKeyframes(int from, int to) {
+        int first = Arrays.binarySearch(keyframes, from);
+        int last = Arrays.binarySearch(keyframes, to);
+        return (last >= 0 ? last : -last - 1) - (first >= 0 ? first : -first - 1);
+    }
+
+    /**
+     * Moves the grabber to keyframe, or a little before it. The seek itself decodes nothing past the keyframe:
+     * dropping the frames before the one you want is up to the caller, see {@link FrameReader}.
+     *
+     * @param keyframe should be one of the keyframes, see {@link #getKeyframeBefore}
+     */
+    public void seek(FFmpegFrameGrabber grabber, int keyframe) throws Exception {
+        // the grabber adds the stream start time to what it's given, but its frame timestamps already have it.
+        // landing early is fine, landing late isn't
+        grabber.setTimestamp(Math.max(0, timestamps[keyframe] - timestamps[0]));
+    }
+
+    private static FrameIndex read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a frame index");
+        }
+        int frameCount = in.readInt();
+        int keyframeCount = in.readInt();
+        if (frameCount <= 0 || keyframeCount <= 0 || keyframeCount > frameCount) {
+            throw new IOException("Corrupted frame index");
+        }
+        // deltas are small, the index stays around 4 bytes per frame
+        long[] timestamps = new long[frameCount];
+        timestamps[0] = in.readLong();
+        for (int i = 1; i < frameCount; i++) {
+            int delta = in.readInt();
+            if (delta <= 0) {
+                throw new IOException("Corrupted frame index");
+            }
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+        int[] keyframes = new int[keyframeCount];
+        for (int i = 0; i < keyframeCount; i++) {
+            keyframes[i] = in.readInt();
+        }
+        return new FrameIndex(timestamps, keyframes);
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(timestamps.length);
+        out.writeInt(keyframes.length);
+        out.writeLong(timestamps[0]);
+        for (int i = 1; i < timestamps.length; i++) {
+            out.writeInt((int) (timestamps[i] - timestamps[i - 1]));
+        }
+        for (int keyframe : keyframes) {
+            out.writeInt(keyframe);
+        }
+    }
+
+    /**
+     * Collects frames as they are grabbed, in order, from the first one to the end of the file.
+     */
+    public static class Builder {
+        private final File inputFile;
+        private long[] timestamps = new long[1024];
+        private int[] keyframes = new int[64];
+        private int count = 0;
+        private int keyframeCount = 0;
+        private boolean valid = true;
+
+        public Builder(File inputFile) {
+            this.inputFile = inputFile;
+        }
+
+        public void add(Frame frame) {
+            if (!valid) {
+                return;
+            }
+            long timestamp = frame.timestamp;
+            if (count > 0 && (timestamp <= timestamps[count - 1] || timestamp - timestamps[count - 1] > Integer.MAX_VALUE)) {
+                valid = false; // broken timestamps, or a gap of more than half an hour. can't seek by timestamp
+                return;
+            }
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+            }
+            // the first frame is where decoding starts, it has to count as a keyframe
+            if (frame.keyFrame || count == 0) {
+                if (keyframeCount == keyframes.length) {
+                    keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+                }
+                keyframes[keyframeCount++] = count;
+            }
+            timestamps[count++] = timestamp;
+        }
+
+        /**
+         * Call it once the grabber returned null. Caches the index.
+         *
+         * @return null if the timestamps can't be used for seeking
+         */
+        public FrameIndex finish() {
+            if (!valid || count == 0) {
+                return null;
+            }
+            FrameIndex index = new FrameIndex(Arrays.copyOf(timestamps, count), Arrays.copyOf(keyframes, keyframeCount));
+            ArtifactCache.putData(key(inputFile), index::write);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package labmus.animove.utils;
+
+import labmus.animove.ZFConfigs;
+import labmus.animove.ZFHelperMethods;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Pipelined version of the frame loop in {@link labmus.animove.ZFHelperMethods#iterateOverFrames}.
+ * <p>
+ * Three stages, each on its own thread, linked by bounded queues:
+ * 1. decoding (and grayscale conversion) on a decoder thread;
+ * 2. the function chain, on the caller's thread;
+ * 3. encoding, on an {@link EncoderStage}. {@link labmus.animove.utils.functions.SimpleRecorderFunction}
+ * finds it through {@link #currentEncoderStage()}, so function chains don't need to know about any of this.
+ * <p>
+ * Each stage is a single thread and each queue is FIFO, so frames come out in the same order they went in.
+ */
+public class FramePipeline {
+
+    private static final ThreadLocal<EncoderStage> currentEncoder = new ThreadLocal<>();
+
+    /**
+     * @return the encoder stage of the pipeline running on this thread, or null outside a pipeline
+     */
+    public static EncoderStage currentEncoderStage() {
+        return currentEncoder.get();
+    }
+
+    /**
+     * @param profiler decoding is timed on the decoder thread. encoding is timed by the recorder function
+     */
+    public static void run(FrameReader reader, Function<Mat, Mat> matFunction, ProgressReporter progress,
+                           Profiler profiler, IterationOptions options) throws Exception {
+
+        BlockingQueue<Mat> decoded = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        Mat endOfStream = new Mat(); // only compared by reference
+        AtomicReference<Exception> decodeError = new AtomicReference<>();
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        Thread decoder = new Thread(() -> {
+            try {
+                Mat frame;
+                while (!stop.get()) {
+                    long decodeStart = System.nanoTime();
+                    if ((frame = reader.next()) == null) {
+                        break;
+                    }
+                    profiler.record(Profiler.DECODE, decodeStart);
+                    while (!decoded.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+                        if (stop.get()) {
+                            reader.recycle(frame);
+                            return;
+                        }
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                decodeError.set(e);
+            } finally {
+                try {
+                    while (!stop.get() && !decoded.offer(endOfStream, 100, TimeUnit.MILLISECONDS)) {
+                        // waiting for the processing stage to make room
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, ZFConfigs.pluginName + "-decoder");
+        decoder.setDaemon(true);
+
+        EncoderStage encoder = new EncoderStage(options.getQueueCapacity());
+        currentEncoder.set(encoder);
+        Cancellation cancellation = Cancellation.current();
+        boolean failed = true;
+        try {
+            decoder.start();
+            while (true) {
+                cancellation.check();
+                Mat currentFrame = decoded.take();
+                if (currentFrame == endOfStream) {
+                    break;
+                }
+                ZFHelperMethods.applyToFrame(matFunction, currentFrame);
+                reader.recycle(currentFrame);
+                profiler.frameDone();
+
+                // skipped frames count too. the decoder is a few frames ahead, close enough
+                progress.update(reader.getPosition());
+            }
+            if (decodeError.get() != null) {
+                throw decodeError.get();
+            }
+            failed = false;
+        } finally {
+            currentEncoder.remove();
+            stop.set(true);
+            decoder.interrupt();
+            decoder.join();
+            Mat leftover;
+            while ((leftover = decoded.poll()) != null) {
+                if (leftover != endOfStream) {
+                    reader.recycle(leftover);
+                }
+            }
+            endOfStream.close();
+            if (failed) {
+                try {
+                    encoder.drain();
+                } catch (Exception ignored) {
+                    // the first error is the one that matters
+                }
+            }
+        }
+        encoder.drain(); // every frame must be written before the recorder is closed
+    }
+}
@@ -0,0 +1,472 @@
+package labmus.animove.utils;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecDescriptor;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_PROP_INTRA_ONLY;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_descriptor_get;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+
+/**
+ * Reads a frame range from an already started and positioned grabber, one grayscale Mat at a time.
+ * Start the grabber with {@link GrayDecoder#startGrabber} to skip the BGR conversion.
+ * Use {@link #open} to get the same range {@link labmus.animove.ZFHelperMethods#iterateOverFrames} works on.
+ * <p>
+ * Frames come from a {@link MatPool}: give them back with {@link #recycle} and the next frames reuse them.
+ * <p>
+ * Can also return only some of the frames, see {@link #setSampling}.
+ * <p>
+ * With a {@link FrameIndex} (see {@link #open(FFmpegFrameGrabber, int, int, FrameIndex)}) the range is exact:
+ * frames are numbered by their timestamps and seeks are frame-accurate.
+ * Without one, frames are counted from where the grabber was positioned, and the length is a guess.
+ */
+public class FrameReader implements AutoCloseable {
+
+    // from this stride on, intra-only videos seek to the next frame instead of decoding the ones in between
+    private static final int SEEK_STRIDE = 4;
+    // how many keyframe intervals setSamples() averages without an index
+    private static final int KEYFRAMES_TO_ESTIMATE = 4;
+
+    private final FFmpegFrameGrabber grabber;
+    private final int actualStartFrame;
+    private final int actualEndFrame;
+    private final boolean untilEnd;
+    private boolean processUntilEnd;
+
+    private volatile int frameIndex; // read by other threads for progress
+    private boolean finished = false;
+    private long lastTimestamp = -1;
+    private Rect crop = null;
+    private int stride = 1;
+    private boolean keyframesOnly = false;
+    private boolean seekToSkip = false;
+    // setSamples() without an index: the stride waits for the first keyframes, they tell how far apart they are
+    private int pendingSamples = 0;
+    private int firstKeyframe = -1;
+    private int keyframesSeen = 0;
+
+    private final FrameIndex index; // null: frames are counted
+    private boolean seekPending = false; // the grabber still has to be moved to frameIndex
+    private int indexedFrame; // number of the last frame grabIndexed() returned
+    private FrameIndex.Builder indexBuilder = null;
+    private boolean reachedEndOfFile = false;
+
+    private final GrayDecoder decoder;
+    private final MatPool pool;
+
+    public FrameReader(FFmpegFrameGrabber grabber, int actualStartFrame, int actualEndFrame, boolean processUntilEnd) {
+        this(grabber, actualStartFrame, actualEndFrame, processUntilEnd, 4);
+    }
+
+    /**
+     * @param poolSize how many frames can be out at the same time without allocating new ones
+     */
+    public FrameReader(FFmpegFrameGrabber grabber, int actualStartFrame, int actualEndFrame, boolean processUntilEnd, int poolSize) {
+        this(grabber, actualStartFrame, actualEndFrame, processUntilEnd, null, processUntilEnd, poolSize);
+    }
+
+    private FrameReader(FFmpegFrameGrabber grabber, int actualStartFrame, int actualEndFrame, boolean processUntilEnd,
+                        FrameIndex index, boolean untilEnd, int poolSize) {
+        this.pool = new MatPool(poolSize);
+        this.decoder = new GrayDecoder(grabber);
+        this.grabber = grabber;
+        this.actualStartFrame = actualStartFrame;
+        this.frameIndex = actualStartFrame;
+        this.actualEndFrame = actualEndFrame;
+        this.processUntilEnd = processUntilEnd;
+        this.untilEnd = untilEnd;
+        this.index = index;
+    }
+
+    /**
+     * Works out the frame range from user-facing frame numbers (1-indexed, endFrame 0 = whole video)
+     * and moves the grabber to its start.
+     *
+     * @param grabber an already started grabber, see {@link GrayDecoder#startGrabber}
+     */
+    public static FrameReader open(FFmpegFrameGrabber grabber, int startFrame, int endFrame) throws Exception {
+//        int totalFrames = getExactFrameCount(inputFile) - 1; // frame numbers are 0-indexed.
+        int totalFrames = grabber.getLengthInFrames() - 1; // frame numbers are 0-indexed.
+
+        boolean processUntilEnd = endFrame <= 0 || endFrame > totalFrames;
+        int actualEndFrame = (processUntilEnd) ? totalFrames : endFrame - 1;
+
+        int actualStartFrame = Math.max(0, startFrame - 2);
+
+        if (startFrame == 1) {
+            // grabber.setFrameNumber() will mess the frame count. just leave as-is for the first frame.
+            if (!processUntilEnd) {
+                actualEndFrame++;
+            }
+        } else if (startFrame == 2) {
+            grabber.setFrameNumber(0);
+        } else {
+            grabber.setFrameNumber(actualStartFrame);
+        }
+
+        if (actualStartFrame >= actualEndFrame) {
+            throw new Exception("Initial frame must be before end frame.");
+        }
+
+//        IJ.log("Actual start frame: " + actualStartFrame);
+//        IJ.log("Actual end frame: " + actualEndFrame);
+//        IJ.log("processUntilEnd: " + processUntilEnd);
+//        IJ.log("totalFrames: " + totalFrames);
+
+        return new FrameReader(grabber, actualStartFrame, actualEndFrame, processUntilEnd);
+    }
+
+    /**
+     * Same range as {@link #open(FFmpegFrameGrabber, int, int)}, but exact: frame n of the range is the n-th frame
+     * in the file, and the end is the real end. The grabber is moved lazily, on the first {@link #next()}.
+     *
+     * @param index the grabber's video index, see {@link FrameIndex#getCached}. null for the usual {@link #open}
+     */
+    public static FrameReader open(FFmpegFrameGrabber grabber, int startFrame, int endFrame, FrameIndex index) throws Exception {
+        if (index == null) {
+            return open(grabber, startFrame, endFrame);
+        }
+        int frameCount = index.getFrameCount();
+        int actualStartFrame = Math.max(0, startFrame - 1);
+        int actualEndFrame = (endFrame <= 0 || endFrame > frameCount) ? frameCount : endFrame;
+        if (actualStartFrame >= actualEndFrame) {
+            throw new Exception("Initial frame must be before end frame.");
+        }
+        FrameReader reader = new FrameReader(grabber, actualStartFrame, actualEndFrame, false,
+                index, actualEndFrame == frameCount, 4);
+        reader.seekPending = actualStartFrame > 0; // a grabber that was just started is at the first frame
+        return reader;
+    }
+
+    /**
+     * The returned Mat belongs to the caller. Hand it to {@link #recycle} when done (or close it).
+     *
+     * @return the next grayscale frame, or null when the range is over
+     * @throws Exception if the file ends before the requested range does
+     */
+    public Mat next() throws Exception {
+        if (finished || !((frameIndex < actualEndFrame) || processUntilEnd)) {
+            finished = true;
+            finishIndex();
+            return null;
+        }
+        Frame jcvFrame = index == null ? grabber.grabImage() : grabIndexed(true);
+        if (!advance(jcvFrame)) {
+            finishIndex();
+            return null;
+        }
+        int i = frameIndex - 1;
+        lastTimestamp = jcvFrame.timestamp;
+
+        int rows = crop == null ? jcvFrame.imageHeight : crop.height();
+        int cols = crop == null ? jcvFrame.imageWidth : crop.width();
+        Mat currentFrame = pool.acquire(rows, cols, CV_8UC1);
+        decoder.toGray(jcvFrame, currentFrame, i, crop);
+
+        if (pendingSamples > 0) {
+            estimateStride(i);
+        }
+        if (stride > 1) {
+            skip(stride - 1);
+        }
+        return currentFrame;
+    }
+
+    /**
+     * Moves the frame index past a grabbed frame.
+     *
+     * @return false if there's no frame to return (end of file, or past the range)
+     */
+    private boolean advance(Frame jcvFrame) throws Exception {
+        int i = frameIndex;
+        if (jcvFrame == null || jcvFrame.image == null) {
+            finished = true;
+            reachedEndOfFile = true;
+            if (processUntilEnd) {
+                return false;
+            }
+            throw new Exception("Read terminated prematurely at frame " + i); // we were NOT done!!
+        }
+        if (indexBuilder != null) {
+            indexBuilder.add(jcvFrame);
+        }
+        if (index != null) {
+            i = indexedFrame;
+            if (i >= actualEndFrame) {
+                finished = true;
+                return false;
+            }
+        } else if (keyframesOnly) {
+            // the decoder dropped every frame up to this keyframe, only the timestamp knows where we are
+            i = Math.max(i, (int) Math.round(jcvFrame.timestamp * grabber.getFrameRate() / 1_000_000.0));
+            if (i > actualEndFrame || (i == actualEndFrame && !processUntilEnd)) {
+                finished = true;
+                return false;
+            }
+        }
+
+        if (i >= actualEndFrame) { // processUntilEnd = true
+            processUntilEnd = false; // just process one more frame
+            // we assume the file header/metadata didn't lie about the length
+            // the imprecision here comes from the grabber.getLengthInFrames() method, that is imprecise
+        }
+        frameIndex = i + 1;
+        return true;
+    }
+
+    /**
+     * Grabs the frame at frameIndex, or the first one after it. Frames are numbered by their timestamps.
+     * After a seek, the frames between the keyframe and frameIndex are dropped without being converted.
+     *
+     * @param process false to skip the conversion, for frames that won't be used
+     */
+    private Frame grabIndexed(boolean process) throws Exception {
+        boolean sought = false;
+        if (seekPending) {
+            seekPending = false;
+            sought = true;
+            index.seek(grabber, index.getKeyframeBefore(frameIndex));
+            dropBefore(frameIndex);
+        }
+        while (true) {
+            Frame jcvFrame = process ? grabber.grabImage() : grabber.grabFrame(false, true, false, false, false);
+            if (jcvFrame == null || jcvFrame.image == null) {
+                return jcvFrame;
+            }
+            int i = index.getFrame(jcvFrame.timestamp);
+            if (i < frameIndex) {
+                continue; // the seek landed before the keyframe
+            }
+            if (sought && i > frameIndex && !keyframesOnly) {
+                // the seek landed past the keyframe. reading from the start is slow, but still exact
+                sought = false;
+                grabber.stop();
+                grabber.start();
+                dropBefore(frameIndex);
+                continue;
+            }
+            indexedFrame = i;
+            return jcvFrame;
+        }
+    }
+
+    /**
+     * Drops frames, without converting them, up to the one before frame. Stops early past it.
+     */
+    private void dropBefore(int frame) throws Exception {
+        if (frame == 0 || keyframesOnly) {
+            return; // non-keyframes never come out of the decoder
+        }
+        long previous = index.getTimestamp(frame - 1);
+        Frame jcvFrame;
+        while ((jcvFrame = grabber.grabFrame(false, true, false, false, false)) != null) {
+            if (jcvFrame.timestamp >= previous) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Goes past the next frames without converting them.
+     * Inter-coded videos still have to decode them, the next frames depend on them.
+     */
+    private void skip(int frames) throws Exception {
+        if (seekToSkip) {
+            int target = frameIndex + frames;
+            if (target > actualEndFrame && !processUntilEnd) {
+                finished = true;
+                return;
+            }
+            // every frame is a keyframe: the seek lands right there
+            if (index != null) {
+                seekPending = true;
+            } else {
+                grabber.setFrameNumber(target);
+            }
+            frameIndex = target;
+            return;
+        }
+        for (int k = 0; k < frames && !finished; k++) {
+            if (!((frameIndex < actualEndFrame) || processUntilEnd)) {
+                finished = true;
+                return;
+            }
+            // decoded, but never converted
+            Frame jcvFrame = index == null ? grabber.grabFrame(false, true, false, false, false) : grabIndexed(false);
+            if (!advance(jcvFrame)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns only some of the frames in the range. Backgrounds and previews don't need all of them.
+     * Must be called before the first {@link #next()}.
+     *
+     * @param stride        returns one frame, then skips stride - 1
+     * @param keyframesOnly the grabber was started with {@link #skipNonKeyframes}.
+     *                      Frame positions then come from timestamps, and the stride counts keyframes
+     */
+    public void setSampling(int stride, boolean keyframesOnly) {
+        this.stride = Math.max(1, stride);
+        this.keyframesOnly = keyframesOnly;
+        this.seekToSkip = !keyframesOnly && this.stride >= SEEK_STRIDE && isIntraOnly(grabber);
+        if (this.stride > 1 || keyframesOnly) {
+            this.indexBuilder = null;
+        }
+    }
+
+    /**
+     * About this many frames, evenly spaced across the range. See {@link IterationOptions#setSamples}.
+     *
+     * @param samples the grabber must have been started with {@link #skipNonKeyframes}
+     */
+    public void setSamples(int samples) {
+        samples = Math.max(1, samples);
+        if (isIntraOnly(grabber)) {
+            setSampling(getFramesToProcess() / samples, false);
+        } else if (index != null) {
+            setSampling(index.countKeyframes(actualStartFrame, actualEndFrame) / samples, true);
+        } else {
+            // no keyframe count, the header's length and the first keyframes give one. until then every keyframe is kept
+            setSampling(1, true);
+            pendingSamples = samples;
+        }
+    }
+
+    /**
+     * Sets the stride for {@link #setSamples} from the keyframe interval seen so far,
+     * averaged over a few of them: encoders add keyframes at scene cuts.
+     *
+     * @param frame the keyframe just read
+     */
+    private void estimateStride(int frame) {
+        if (firstKeyframe < 0) {
+            firstKeyframe = frame;
+            return;
+        }
+        keyframesSeen++;
+        if (keyframesSeen < KEYFRAMES_TO_ESTIMATE && frame < actualEndFrame) {
+            return;
+        }
+        double interval = (double) (frame - firstKeyframe) / keyframesSeen;
+        stride = Math.max(1, (int) (getFramesToProcess() / interval / pendingSamples));
+        pendingSamples = 0;
+    }
+
+    /**
+     * Makes the decoder drop everything but keyframes. Call it before starting the grabber.
+     * Intra-only videos (MJPEG...) are all keyframes, nothing changes for them.
+     */
+    public static void skipNonKeyframes(FFmpegFrameGrabber grabber) {
+        grabber.setVideoOption("skip_frame", "nokey");
+    }
+
+    /**
+     * Every frame is a keyframe (MJPEG, FFV1, raw...)
+     *
+     * @param grabber an already started grabber
+     */
+    public static boolean isIntraOnly(FFmpegFrameGrabber grabber) {
+        AVCodecDescriptor descriptor = avcodec_descriptor_get(grabber.getVideoCodec());
+        return descriptor != null && !descriptor.isNull() && (descriptor.props() & AV_CODEC_PROP_INTRA_ONLY) != 0;
+    }
+
+    /**
+     * Records every frame read into builder, and caches the index once the end of the file is reached.
+     * Only for readers going through the whole video, from the first frame and without sampling.
+     */
+    public void recordIndex(FrameIndex.Builder builder) {
+        this.indexBuilder = builder;
+    }
+
+    /**
+     * Called when the range is over. Reads whatever is left past the (imprecise) length, so the index is complete.
+     */
+    private void finishIndex() {
+        if (indexBuilder == null) {
+            return;
+        }
+        FrameIndex.Builder builder = indexBuilder;
+        indexBuilder = null;
+        try {
+            if (!reachedEndOfFile) {
+                Frame jcvFrame;
+                while ((jcvFrame = grabber.grabFrame(false, true, false, false, false)) != null) {
+                    builder.add(jcvFrame);
+                }
+            }
+            builder.finish();
+        } catch (Exception ignored) {
+            // no index this time, that's all
+        }
+    }
+
+    /**
+     * Frames read after this are cropped to this rectangle. Only the cropped part is converted and copied.
+     *
+     * @param crop must be inside the frame. null for whole frames
+     */
+    public void setCrop(Rect crop) {
+        this.crop = crop;
+    }
+
+    /**
+     * Gives a frame returned by {@link #next()} back, so its buffer can be reused. Thread-safe.
+     */
+    public void recycle(Mat frame) {
+        pool.release(frame);
+    }
+
+    @Override
+    public void close() {
+        decoder.close();
+        pool.close();
+    }
+
+    /**
+     * @return index of the frame that the next call to {@link #next()} will read
+     */
+    public int getFrameIndex() {
+        return frameIndex;
+    }
+
+    /**
+     * How far in the range the reader is, in frames. Counts skipped frames too, so it goes with {@link #getFramesToProcess()}.
+     */
+    public int getPosition() {
+        return frameIndex - actualStartFrame;
+    }
+
+    /**
+     * Used for progress. The last frame past the (imprecise) length is not counted.
+     * This is the size of the range, not how many frames are returned when sampling.
+     */
+    public int getFramesToProcess() {
+        return actualEndFrame - actualStartFrame;
+    }
+
+    /**
+     * @return the most frames this reader can return, counting the extra one read past the (guessed) length
+     */
+    public int getMaxFrames() {
+        return getFramesToProcess() + (untilEnd && index == null ? 1 : 0);
+    }
+
+    /**
+     * true if the range goes to the end of the video
+     */
+    public boolean isProcessUntilEnd() {
+        return untilEnd;
+    }
+
+    /**
+     * @return timestamp, in microseconds, of the last frame returned by {@link #next()}
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+}
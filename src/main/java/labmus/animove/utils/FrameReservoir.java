@@ -0,0 +1,234 @@
+package labmus.animove.utils;
+
+import ij.Prefs;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps evenly spaced frames of a stream, within a memory budget, to get per-pixel percentiles out of them.
+ * <p>
+ * Every stride-th frame is copied in. When the budget is full, every other copy is dropped and the stride doubles,
+ * so whatever the length of the video, what's kept is spread over all of it and never takes more than
+ * {@value #BUDGET_PREF} (256 MB by default). That's a few hundred 1080p frames, plenty for a median.
+ * <p>
+ * Only single channel 8 and 16-bit frames, which is what videos are read as here.
+ */
+public class FrameReservoir implements AutoCloseable {
+
+    public static final String BUDGET_PREF = "animove.zproject.reservoirMB";
+    private static final double DEFAULT_BUDGET_MB = 256;
+    // below this a percentile is just noise, whatever the budget says
+    private static final int MIN_FRAMES = 15;
+    // counts are 16-bit, see percentile()
+    private static final int MAX_FRAMES = 4096;
+
+    private final List<Mat> frames = new ArrayList<>();
+    private int capacity = 0;
+    private int stride = 1;
+    private int seen = 0;
+
+    /**
+     * The frame is copied if it's kept, so it can be reused right after.
+     */
+    public void add(Mat frame) {
+        if (capacity == 0) {
+            if (frame.channels() != 1 || (frame.depth() != opencv_core.CV_8U && frame.depth() != opencv_core.CV_16U)) {
+                throw new IllegalArgumentException("Percentiles need single channel 8 or 16-bit frames");
+            }
+            long budget = (long) (Prefs.get(BUDGET_PREF, DEFAULT_BUDGET_MB) * 1024 * 1024);
+            long frameBytes = Math.max(1, frame.total() * frame.elemSize());
+            capacity = (int) Math.max(MIN_FRAMES, Math.min(MAX_FRAMES, budget / frameBytes));
+        }
+        if (seen++ % stride != 0) {
+            return;
+        }
+        Mat copy = new Mat(frame.rows(), frame.cols(), frame.type());
+        frame.copyTo(copy); // as clone() seems to be leaking
+        frames.add(copy);
+        if (frames.size() > capacity) {
+            // kept frames are stride apart. the even ones are 2 * stride apart
+            List<Mat> kept = new ArrayList<>();
+            for (int i = 0; i < frames.size(); i++) {
+                if (i % 2 == 0) {
+                    kept.add(frames.get(i));
+                } else {
+                    frames.get(i).close();
+                }
+            }
+            frames.clear();
+            frames.addAll(kept);
+            stride *= 2;
+        }
+    }
+
+    /**
+     * Takes the frames of another reservoir, which comes after this one in the video. The other one is emptied.
+     * If the two are over budget together, evenly spaced frames are dropped from the whole,
+     * so the result is close to, but not always the same as, one reservoir fed with both.
+     */
+    public void merge(FrameReservoir other) {
+        frames.addAll(other.frames);
+        other.frames.clear();
+        capacity = Math.max(capacity, other.capacity);
+        stride = Math.max(stride, other.stride);
+        seen += other.seen;
+        other.seen = 0;
+        if (frames.size() > capacity) {
+            List<Mat> kept = new ArrayList<>();
+            int j = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                if (j < capacity && i == (int) ((long) j * frames.size() / capacity)) {
+                    kept.add(frames.get(i));
+                    j++;
+                } else {
+                    frames.get(i).close();
+                }
+            }
+            frames.clear();
+            frames.addAll(kept);
+        }
+    }
+
+    /**
+     * Per-pixel percentile (nearest rank) of the kept frames, same type as them. Close it.
+     * <p>
+     * Done with whole-frame OpenCV operations, all pixels at once: the result is found one bit at a time,
+     * from the top. For each bit, count how many frames are at or below the lower half of what's left:
+     * too few and the bit is set. That's 8 passes over the kept frames for 8-bit ones.
+     *
+     * @param percentile from 0 to 100. 50 is the median
+     */
+    public Mat percentile(double percentile) {
+        if (frames.isEmpty()) {
+            throw new IllegalStateException("No frames were kept");
+        }
+        Mat first = frames.get(0);
+        int rows = first.rows();
+        int cols = first.cols();
+        int bits = first.depth() == opencv_core.CV_8U ? 8 : 16;
+        // the rank-th smallest value, 1-based
+        int rank = 1 + (int) Math.round(Math.max(0, Math.min(100, percentile)) / 100.0 * (frames.size() - 1));
+
+        Mat result = new Mat(rows, cols, first.type(), new Scalar(0));
+        try (Mat lowerHalfTop = new Mat();
+             Mat atOrBelow = new Mat();
+             Mat count = new Mat(rows, cols, opencv_core.CV_16UC1);
+             Mat one = new Mat(rows, cols, opencv_core.CV_16UC1, new Scalar(1));
+             Mat rankMat = new Mat(rows, cols, opencv_core.CV_16UC1, new Scalar(rank));
+             Mat tooFew = new Mat()) {
+            for (int bit = bits - 1; bit >= 0; bit--) {
+                try (Mat halfMinusOne = new Mat(rows, cols, first.type(), new Scalar((1 << bit) - 1));
+                     Mat half = new Mat(rows, cols, first.type(), new Scalar(1 << bit))) {
+                    // the answer is between result and result + 2 * 2^bit - 1
+                    opencv_core.add(result, halfMinusOne, lowerHalfTop);
+                    count.put(new Scalar(0));
+                    for (Mat frame : frames) {
+                        opencv_core.compare(frame, lowerHalfTop, atOrBelow, opencv_core.CMP_LE);
+                        opencv_core.add(count, one, count, atOrBelow, -1);
+                    }
+                    opencv_core.compare(count, rankMat, tooFew, opencv_core.CMP_LT);
+                    opencv_core.add(result, half, result, tooFew, -1);
+                }
+            }
+        } catch (RuntimeException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(stride);
+        out.writeInt(seen);
+        out.writeInt(frames.size());
+        for (Mat frame : frames) {
+            writeMat(out, frame);
+        }
+    }
+
+    /**
+     * Replaces what's kept with what {@link #write} saved.
+     */
+    public void read(DataInputStream in) throws IOException {
+        int savedCapacity = in.readInt();
+        int savedStride = in.readInt();
+        int savedSeen = in.readInt();
+        int size = in.readInt();
+        List<Mat> saved = new ArrayList<>();
+        try {
+            for (int i = 0; i < size; i++) {
+                saved.add(readMat(in));
+            }
+        } catch (IOException e) {
+            saved.forEach(Mat::close);
+            throw e;
+        }
+        close();
+        frames.addAll(saved);
+        capacity = savedCapacity;
+        stride = savedStride;
+        seen = savedSeen;
+    }
+
+    /**
+     * Writes rows, cols, type, the data length and the data.
+     */
+    public static void writeMat(DataOutputStream out, Mat mat) throws IOException {
+        Mat continuous = mat;
+        if (!mat.isContinuous()) {
+            continuous = new Mat(mat.rows(), mat.cols(), mat.type());
+            mat.copyTo(continuous);
+        }
+        try {
+            out.writeInt(continuous.rows());
+            out.writeInt(continuous.cols());
+            out.writeInt(continuous.type());
+            byte[] data = new byte[Math.toIntExact(continuous.total() * continuous.elemSize())];
+            continuous.data().get(data);
+            out.writeInt(data.length);
+            out.write(data);
+        } finally {
+            if (continuous != mat) {
+                continuous.close();
+            }
+        }
+    }
+
+    /**
+     * Reads what {@link #writeMat} wrote.
+     */
+    public static Mat readMat(DataInputStream in) throws IOException {
+        int rows = in.readInt();
+        int cols = in.readInt();
+        int type = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        Mat mat = new Mat(rows, cols, type);
+        if (mat.total() * mat.elemSize() != data.length) {
+            mat.close();
+            throw new IOException("Corrupted saved mat");
+        }
+        mat.data().put(data);
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        for (Mat frame : frames) {
+            frame.close();
+        }
+        frames.clear();
+    }
+}
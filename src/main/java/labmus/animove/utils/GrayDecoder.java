@@ -0,0 +1,201 @@
+package labmus.animove.utils;
+
+import ij.Prefs;
+import org.bytedeco.ffmpeg.avutil.AVComponentDescriptor;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVPixFmtDescriptor;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+import static org.bytedeco.opencv.global.opencv_core.LUT;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+
+/**
+ * Turns grabbed frames into 8-bit grayscale Mats.
+ * <p>
+ * Most videos are YUV, and their Y plane already is the grayscale image. Grabbers started with
+ * {@link #startGrabber} skip the conversion to BGR and hand over the decoded picture as-is (RAW mode):
+ * the Y plane is copied straight into the frame, no color conversion at all.
+ * Sources without an 8-bit Y plane (RGB, palette, 10-bit...) fall back to BGR + cvtColor, like before.
+ * <p>
+ * Limited range (16-235) sources are stretched to 0-255 with a lookup table, like the BGR conversion did.
+ * The BGR path rounds down on the way, so its frames come out a level or two darker than these.
+ * Set the ImageJ preference {@value #GRAY_DECODE_PREF} to false to always use the BGR path.
+ */
+public class GrayDecoder implements AutoCloseable {
+
+    public static final String GRAY_DECODE_PREF = "animove.decode.gray";
+
+    private final boolean raw;
+    private final Mat rangeLut; // null for full range sources
+    private final OpenCVFrameConverter.ToMat converter;
+
+    /**
+     * @param grabber an already started grabber. RAW mode means {@link #startGrabber} checked the format
+     */
+    public GrayDecoder(FFmpegFrameGrabber grabber) {
+        this.raw = grabber.getImageMode() == FrameGrabber.ImageMode.RAW;
+        if (raw) {
+            this.converter = null;
+            this.rangeLut = isFullRange(grabber.getPixelFormat()) ? null : createRangeLut();
+        } else {
+            // one converter for the whole video. see toGray()
+            this.converter = new OpenCVFrameConverter.ToMat();
+            this.rangeLut = null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Prefs.get(GRAY_DECODE_PREF, true);
+    }
+
+    /**
+     * Use this instead of grabber.start() for grabbers that feed a {@link GrayDecoder}.
+     * Starts in RAW mode when the source has a Y plane we can use, in the usual BGR mode otherwise.
+     */
+    public static void startGrabber(FFmpegFrameGrabber grabber) throws Exception {
+        if (!isEnabled()) {
+            grabber.start();
+            return;
+        }
+        grabber.setImageMode(FrameGrabber.ImageMode.RAW);
+        try {
+            grabber.start();
+        } catch (Exception e) {
+            grabber.setImageMode(FrameGrabber.ImageMode.COLOR);
+            grabber.start();
+            return;
+        }
+        // in RAW mode this is the format of the decoded picture
+        if (!hasGrayPlane(grabber.getPixelFormat())) {
+            grabber.stop();
+            grabber.setImageMode(FrameGrabber.ImageMode.COLOR);
+            grabber.start();
+        }
+    }
+
+    /**
+     * Starts the grabber (see {@link #startGrabber}) and returns a decoder for its frames.
+     */
+    public static GrayDecoder start(FFmpegFrameGrabber grabber) throws Exception {
+        startGrabber(grabber);
+        return new GrayDecoder(grabber);
+    }
+
+    /**
+     * 8-bit luma in a plane of its own: planar and semi-planar YUV, and gray.
+     */
+    private static boolean hasGrayPlane(int pixelFormat) {
+        AVPixFmtDescriptor desc = av_pix_fmt_desc_get(pixelFormat);
+        if (desc == null || desc.isNull()) {
+            return false;
+        }
+        if ((desc.flags() & (AV_PIX_FMT_FLAG_RGB | AV_PIX_FMT_FLAG_PAL | AV_PIX_FMT_FLAG_HWACCEL | AV_PIX_FMT_FLAG_BITSTREAM)) != 0) {
+            return false;
+        }
+        AVComponentDescriptor luma = desc.comp(0);
+        return luma.plane() == 0 && luma.step() == 1 && luma.offset() == 0 && luma.shift() == 0 && luma.depth() == 8;
+    }
+
+    /**
+     * Same rule libswscale uses for the BGR conversion: yuvj* and gray are full range, everything else isn't.
+     */
+    private static boolean isFullRange(int pixelFormat) {
+        AVPixFmtDescriptor desc = av_pix_fmt_desc_get(pixelFormat);
+        String name = desc.name().getString();
+        return name.startsWith("yuvj") || name.startsWith("gray") || name.startsWith("ya8");
+    }
+
+    /**
+     * 16-235 to 0-255
+     */
+    private static Mat createRangeLut() {
+        Mat lut = new Mat(1, 256, CV_8UC1);
+        byte[] values = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            long v = Math.round((i - 16) * 255.0 / 219.0);
+            values[i] = (byte) Math.max(0, Math.min(255, v));
+        }
+        lut.data().put(values);
+        return lut;
+    }
+
+    /**
+     * Writes the grayscale version of a grabbed frame into dst.
+     * <p>
+     * In BGR mode the converter keeps returning the same Mat, a view over the grabber's buffer. Both belong to them:
+     * closing the converted Mat (or a Frame a converter returned) breaks the converter for every frame after that.
+     * That's what used to happen, and why it looked like a new converter was needed every frame.
+     *
+     * @param i only used in the error message
+     */
+    public void toGray(Frame jcvFrame, Mat dst, int i) throws Exception {
+        toGray(jcvFrame, dst, i, null);
+    }
+
+    /**
+     * Same as {@link #toGray(Frame, Mat, int)}, but only the part of the frame inside crop is converted.
+     *
+     * @param crop must be inside the frame. null for the whole frame
+     */
+    public void toGray(Frame jcvFrame, Mat dst, int i, Rect crop) throws Exception {
+        if (raw) {
+            AVFrame picture = (AVFrame) jcvFrame.opaque;
+            // a view over the decoder's Y plane. it's reused by the next grab, so it's copied out right away
+            try (Mat luma = new Mat(jcvFrame.imageHeight, jcvFrame.imageWidth, CV_8UC1, picture.data(0), picture.linesize(0));
+                 Mat region = crop == null ? null : new Mat(luma, crop)) {
+                Mat src = region == null ? luma : region;
+                if (rangeLut != null) {
+                    LUT(src, rangeLut, dst);
+                } else {
+                    src.copyTo(dst);
+                }
+            }
+        } else {
+            Mat currentFrameColor = converter.convert(jcvFrame); // do NOT close this one
+            if (currentFrameColor == null || currentFrameColor.isNull()) {
+                throw new Exception("Error processing frame " + i); // we were NOT done!!
+            }
+
+            // a view, closing it leaves the converter's Mat alone
+            try (Mat region = crop == null ? null : new Mat(currentFrameColor, crop)) {
+                Mat src = region == null ? currentFrameColor : region;
+                // check if we should be converting to grayscale
+                if (src.channels() > 1) {
+                    cvtColor(src, dst, COLOR_BGR2GRAY);
+                } else {
+                    // the grabber reuses its buffer on the next grab, the caller needs its own copy
+                    src.copyTo(dst);
+                }
+            }
+        }
+
+        if (dst.isNull()) {
+            throw new Exception("Error processing frame " + i); // we were NOT done!!
+        }
+    }
+
+    /**
+     * true if frames skip the BGR conversion
+     */
+    public boolean isRaw() {
+        return raw;
+    }
+
+    @Override
+    public void close() {
+        if (converter != null) {
+            converter.close();
+        }
+        if (rangeLut != null) {
+            rangeLut.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package labmus.animove.utils;
+
+import org.bytedeco.opencv.opencv_core.Rect;
+
+/**
+ * Settings for {@link labmus.animove.ZFHelperMethods#iterateOverFrames}.
+ * The defaults reproduce the original behavior: everything runs on the caller's thread.
+ */
+public class IterationOptions {
+
+    private boolean pipelined = false;
+    private int queueCapacity = 8;
+    private Rect crop = null;
+    private int stride = 1;
+    private boolean keyframesOnly = false;
+    private int samples = 0;
+    private Profiler profiler = null;
+    private FrameIndex index = null;
+
+    /**
+     * In pipelined mode, frames are decoded on one thread, processed on the caller's thread
+     * and encoded on a third one (see {@link FramePipeline}).
+     * Frame order is kept the same.
+     */
+    public IterationOptions setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * How many frames can wait between two stages before the faster stage blocks.
+     * Each queued frame is a full decoded image, so keep this small.
+     */
+    public IterationOptions setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        return this;
+    }
+
+    /**
+     * Frames are cropped to this rectangle as they are decoded, before the function chain sees them.
+     * Everything downstream (masks, backgrounds, recorders) must then be sized to it.
+     * See {@link labmus.animove.ZFHelperMethods#getRoiBounds}.
+     *
+     * @param crop must be inside the frame. null (the default) for whole frames
+     */
+    public IterationOptions setCrop(Rect crop) {
+        this.crop = crop;
+        return this;
+    }
+
+    /**
+     * Processes one frame, then skips stride - 1. Skipped frames are not converted nor processed,
+     * and intra-only videos (MJPEG...) seek past them instead of decoding them when the stride is large enough.
+     */
+    public IterationOptions setStride(int stride) {
+        this.stride = Math.max(1, stride);
+        return this;
+    }
+
+    /**
+     * Only keyframes are decoded, the rest is dropped by the decoder. Much faster on inter-coded videos (H.264...),
+     * where keyframes are usually a few seconds apart. Good enough for backgrounds, not for tracking.
+     * The stride then counts keyframes.
+     */
+    public IterationOptions setKeyframesOnly(boolean keyframesOnly) {
+        this.keyframesOnly = keyframesOnly;
+        return this;
+    }
+
+    /**
+     * About this many frames, evenly spaced across the range. Overrides the stride and keyframe settings:
+     * intra-only videos seek from one sample to the next, inter-coded ones use their keyframes.
+     *
+     * @param samples 0 (the default) for every frame
+     */
+    public IterationOptions setSamples(int samples) {
+        this.samples = Math.max(0, samples);
+        return this;
+    }
+
+    /**
+     * Decoding, encoding and frame totals go to this profiler. Stages of the chain are only timed
+     * if they were wrapped with {@link Profiler#wrap}.
+     *
+     * @param profiler null (the default) for none
+     */
+    public IterationOptions setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        return this;
+    }
+
+    /**
+     * Frame numbers are looked up in this index instead of counted while decoding.
+     * Pass the one {@link FrameIndex#get} returned: the cached one can be gone by the time the frames are read.
+     *
+     * @param index null (the default) uses the cached one, if any
+     */
+    public IterationOptions setIndex(FrameIndex index) {
+        this.index = index;
+        return this;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public Rect getCrop() {
+        return crop;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public boolean isKeyframesOnly() {
+        return keyframesOnly;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public FrameIndex getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,65 @@
+package labmus.animove.utils;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps released Mats around so the next frame can reuse their native buffers.
+ * Every frame in a video has the same size and type, so after the first few frames nothing new is allocated.
+ * <p>
+ * Thread-safe: frames can be acquired on one thread and released on another.
+ */
+public class MatPool implements AutoCloseable {
+
+    private final ArrayDeque<Mat> free = new ArrayDeque<>();
+    private final int maxSize;
+    private boolean closed = false;
+
+    /**
+     * @param maxSize how many free Mats are kept. Anything released past that is closed.
+     */
+    public MatPool(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * The contents of the returned Mat are whatever the last user left there.
+     */
+    public synchronized Mat acquire(int rows, int cols, int type) {
+        Mat mat;
+        while ((mat = free.poll()) != null) {
+            if (mat.rows() == rows && mat.cols() == cols && mat.type() == type) {
+                return mat;
+            }
+            mat.close(); // different size, it won't be used again
+        }
+        return new Mat(rows, cols, type);
+    }
+
+    /**
+     * Gives a Mat back to the pool. Closed Mats are ignored, so it's fine if someone closed it already.
+     */
+    public synchronized void release(Mat mat) {
+        if (mat == null || mat.isNull()) {
+            return;
+        }
+        if (free.contains(mat)) {
+            return; // released twice
+        }
+        if (closed || free.size() >= maxSize) {
+            mat.close();
+            return;
+        }
+        free.push(mat);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        Mat mat;
+        while ((mat = free.poll()) != null) {
+            mat.close();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package labmus.animove.utils;
+
+import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.functions.ZprojectFunction;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.scijava.app.StatusService;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Z-projection of a video split into segments, each one decoded by its own grabber on its own thread.
+ * Segments run on the worker pool every job shares ({@link ProcessingScheduler#reserveWorkers}), so two
+ * projections at once split the cores between them instead of each starting one thread per core.
+ * MIN, MAX, SUM, AVG, STD and VARIANCE don't care about frame order, so the partial results are merged at the end
+ * with {@link ZprojectFunction#merge}. MEDIAN and PERCENTILE are read sequentially: each segment would
+ * need its own frame reservoir, and the memory budget is for the whole projection.
+ * <p>
+ * Segments are cut by timestamp: each grabber seeks a little before its segment and drops frames
+ * until the segment starts. If anything doesn't add up (the seek landed too late, the frame count is off,
+ * the file ended early...) the partial results are thrown away and the video is read again sequentially.
+ * Either way, the result is the same as running a {@link ZprojectFunction} through
+ * {@link ZFHelperMethods#iterateOverFrames} with the same range.
+ */
+public class ParallelZprojector {
+
+    // each segment seeks and decodes from the previous keyframe, short segments aren't worth it
+    private static final int MIN_FRAMES_PER_SEGMENT = 250;
+    // in frames. how early a grabber seeks before its segment starts
+    private static final int SEEK_MARGIN = 3;
+
+    private static class Segment {
+        ZprojectFunction zprojectFunction;
+        int count = 0;
+        boolean reachedEnd = false; // stopped before the segment end (end of file or of the range)
+    }
+
+    public static Mat project(ZprojectFunction.OperationMode mode, Supplier<Function<Mat, Mat>> chainFactory,
+                              File inputFile, int startFrame, int endFrame, StatusService statusService) throws Exception {
+        return project(mode, ZprojectFunction.defaultPercentile(mode), chainFactory, inputFile, startFrame, endFrame, statusService,
+                ProcessingScheduler.getWorkerThreads());
+    }
+
+    /**
+     * Same as {@link #project}, but the result is kept in the {@link ArtifactCache}.
+     * Running it again on the same file and range only reads the cached result.
+     *
+     * @param chainName identifies what chainFactory does, e.g. "invert". It's part of the cache key,
+     *                  so two different chains must never share a name.
+     */
+    public static Mat projectCached(ZprojectFunction.OperationMode mode, String chainName, Supplier<Function<Mat, Mat>> chainFactory,
+                                    File inputFile, int startFrame, int endFrame, StatusService statusService) throws Exception {
+        return projectCached(mode, ZprojectFunction.defaultPercentile(mode), chainName, chainFactory,
+                inputFile, startFrame, endFrame, statusService);
+    }
+
+    /**
+     * Same as {@link #projectCached(ZprojectFunction.OperationMode, String, Supplier, File, int, int, StatusService)},
+     * for PERCENTILE.
+     *
+     * @param percentile from 0 to 100. ignored by the other modes
+     */
+    public static Mat projectCached(ZprojectFunction.OperationMode mode, double percentile, String chainName,
+                                    Supplier<Function<Mat, Mat>> chainFactory, File inputFile, int startFrame, int endFrame,
+                                    StatusService statusService) throws Exception {
+        return projectCached(mode, percentile, chainName, chainFactory, inputFile, startFrame, endFrame, statusService, null);
+    }
+
+    /**
+     * Same as {@link #projectCached(ZprojectFunction.OperationMode, double, String, Supplier, File, int, int, StatusService)},
+     * reading the range through the given index.
+     *
+     * @param index from {@link FrameIndex#get}, so it's used even if the cache dropped it. null for the cached one, if any
+     */
+    public static Mat projectCached(ZprojectFunction.OperationMode mode, double percentile, String chainName,
+                                    Supplier<Function<Mat, Mat>> chainFactory, File inputFile, int startFrame, int endFrame,
+                                    StatusService statusService, FrameIndex index) throws Exception {
+        FrameIndex frameIndex = index != null ? index : FrameIndex.getCached(inputFile);
+        String key = ArtifactCache.key(inputFile, "zproject", modeKey(mode, percentile), chainName, startFrame, endFrame,
+                readMode(frameIndex));
+        return ArtifactCache.getOrCompute(key,
+                () -> project(mode, percentile, chainFactory, inputFile, startFrame, endFrame, statusService,
+                        ProcessingScheduler.getWorkerThreads(), frameIndex));
+    }
+
+    /**
+     * Projection of about samples frames evenly spaced across the range, see {@link IterationOptions#setSamples}.
+     * For backgrounds, a few hundred frames spread over the whole video do as well as every frame in it.
+     * The result is kept in the {@link ArtifactCache}, like {@link #projectCached}.
+     */
+    public static Mat projectSampled(ZprojectFunction.OperationMode mode, String chainName, Supplier<Function<Mat, Mat>> chainFactory,
+                                     File inputFile, int startFrame, int endFrame, int samples, StatusService statusService) throws Exception {
+        String key = ArtifactCache.key(inputFile, "zproject", modeKey(mode, ZprojectFunction.defaultPercentile(mode)),
+                chainName, startFrame, endFrame, readMode(FrameIndex.getCached(inputFile)), "samples", samples);
+        return ArtifactCache.getOrCompute(key, () -> {
+            ZprojectFunction result = new ZprojectFunction(mode);
+            ZFHelperMethods.iterateOverFrames(chainFactory.get().andThen(result), inputFile, startFrame, endFrame, statusService,
+                    new IterationOptions().setSamples(samples));
+            return result.getResultMat();
+        });
+    }
+
+    /**
+     * MEDIAN is always 50, whatever percentile it was given (see {@link ZprojectFunction}). It's in the key anyway:
+     * medians cached before that could have been some other percentile, they must not be read again.
+     */
+    private static String modeKey(ZprojectFunction.OperationMode mode, double percentile) {
+        switch (mode) {
+            case MEDIAN:
+                return mode.name() + ZprojectFunction.defaultPercentile(mode);
+            case PERCENTILE:
+                return mode.name() + percentile;
+            default:
+                return mode.name();
+        }
+    }
+
+    /**
+     * Part of the cache keys: results read in different ways can be a frame or a level apart, don't mix them.
+     */
+    private static String readMode(FrameIndex index) {
+        // the gray decode can be off by one from the BGR one, and indexed ranges from counted ones
+        return (GrayDecoder.isEnabled() ? "gray" : "bgr") + (index != null ? "-indexed" : "");
+    }
+
+    /**
+     * you really need to close the returned mat, same as {@link ZprojectFunction#getResultMat()}
+     *
+     * @param chainFactory creates the functions applied to each frame before the projection.
+     *                     It's called once per segment, so stateful functions are never shared between threads.
+     *                     Mats captured by these functions must only be read.
+     * @param percentile   for PERCENTILE, from 0 to 100. ignored by the other modes
+     * @param threads      max number of segments decoded at the same time, see {@link ProcessingScheduler#getWorkerThreads}.
+     *                     fewer if other jobs are using the shared worker pool
+     */
+    public static Mat project(ZprojectFunction.OperationMode mode, double percentile, Supplier<Function<Mat, Mat>> chainFactory,
+                              File inputFile, int startFrame, int endFrame, StatusService statusService,
+                              int threads) throws Exception {
+        return project(mode, percentile, chainFactory, inputFile, startFrame, endFrame, statusService, threads, null);
+    }
+
+    /**
+     * Same as {@link #project(ZprojectFunction.OperationMode, double, Supplier, File, int, int, StatusService, int)},
+     * reading the range through the given index.
+     *
+     * @param index from {@link FrameIndex#get}, so it's used even if the cache dropped it. null for the cached one, if any
+     */
+    public static Mat project(ZprojectFunction.OperationMode mode, double percentile, Supplier<Function<Mat, Mat>> chainFactory,
+                              File inputFile, int startFrame, int endFrame, StatusService statusService,
+                              int threads, FrameIndex index) throws Exception {
+        FrameIndex frameIndex = index != null ? index : FrameIndex.getCached(inputFile);
+        ZprojectFunction result = null;
+        boolean percentileMode = mode == ZprojectFunction.OperationMode.MEDIAN || mode == ZprojectFunction.OperationMode.PERCENTILE;
+        if (threads > 1 && !percentileMode) {
+            result = projectInSegments(mode, percentile, chainFactory, inputFile, startFrame, endFrame, statusService,
+                    threads, frameIndex);
+        }
+        if (result == null) {
+            result = new ZprojectFunction(mode, percentile);
+            ZFHelperMethods.iterateOverFrames(chainFactory.get().andThen(result), inputFile, startFrame, endFrame, statusService,
+                    new IterationOptions().setIndex(frameIndex));
+        }
+        return result.getResultMat();
+    }
+
+    /**
+     * @return the merged projection, or null if it has to be done sequentially
+     */
+    private static ZprojectFunction projectInSegments(ZprojectFunction.OperationMode mode, double percentile,
+                                                      Supplier<Function<Mat, Mat>> chainFactory,
+                                                      File inputFile, int startFrame, int endFrame, StatusService statusService,
+                                                      int threads, FrameIndex index) {
+        List<Segment> segments = new ArrayList<>();
+        List<Future<Segment>> futures = new ArrayList<>();
+        int workers = 0;
+        FrameReader reader = null;
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Cancellation cancellation = Cancellation.current();
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile)) {
+            GrayDecoder.startGrabber(grabber);
+            reader = FrameReader.open(grabber, startFrame, endFrame, index);
+            int maxFrames = reader.getMaxFrames();
+            double fps = grabber.getFrameRate();
+
+            int segmentCount = Math.min(threads, maxFrames / MIN_FRAMES_PER_SEGMENT);
+            if (segmentCount < 2 || fps <= 0) {
+                return null;
+            }
+            // this thread reads the first segment. the others get what the other jobs left of the shared pool
+            workers = ProcessingScheduler.reserveWorkers(segmentCount - 1);
+            segmentCount = workers + 1;
+            if (segmentCount < 2) {
+                return null;
+            }
+
+            // the first frame of the range tells where the range starts in time
+            Mat firstFrame = reader.next();
+            if (firstFrame == null) {
+                return null;
+            }
+            long firstTimestamp = reader.getLastTimestamp();
+            double frameDuration = 1_000_000.0 / fps;
+            long[] bounds = new long[segmentCount + 1];
+            bounds[0] = firstTimestamp;
+            for (int j = 1; j <= segmentCount; j++) {
+                // halfway between two frames, so rounding in the timestamps doesn't matter
+                bounds[j] = firstTimestamp + Math.round(((long) maxFrames * j / segmentCount - 0.5) * frameDuration);
+            }
+
+            if (statusService != null) {
+                statusService.showStatus("Processing frames... ");
+            }
+            AtomicInteger done = new AtomicInteger(0);
+            ProgressReporter progress = new ProgressReporter(statusService, "Processing frames...", reader.getFramesToProcess());
+
+            for (int j = 1; j < segmentCount; j++) {
+                long from = bounds[j];
+                long to = bounds[j + 1];
+                futures.add(ProcessingScheduler.submitWorker(() -> {
+                    Cancellation.setCurrent(cancellation);
+                    try {
+                        return readSegment(mode, percentile, chainFactory.get(), inputFile, from, to, frameDuration,
+                                failed, done, progress);
+                    } finally {
+                        Cancellation.setCurrent(null);
+                    }
+                }));
+            }
+
+            Segment first = new Segment();
+            first.zprojectFunction = new ZprojectFunction(mode, percentile);
+            segments.add(first);
+            readFirstSegment(first, chainFactory.get(), reader, firstFrame, bounds[1], done, progress);
+            if (first.reachedEnd) {
+                failed.set(true);
+            }
+            while (!futures.isEmpty()) {
+                Segment segment = futures.remove(0).get();
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            }
+            if (failed.get() || segments.size() != segmentCount) {
+                return null;
+            }
+
+            int total = 0;
+            for (int j = 0; j < segmentCount; j++) {
+                Segment segment = segments.get(j);
+                total += segment.count;
+                if (segment.reachedEnd && j < segmentCount - 1) {
+                    return null;
+                }
+            }
+            Segment last = segments.get(segmentCount - 1);
+            if (last.reachedEnd) {
+                // the file ended first. fine only if the range was "until the end" and nothing went over it
+                if (!reader.isProcessUntilEnd() || total > maxFrames) {
+                    return null;
+                }
+            } else if (total != maxFrames) {
+                return null; // variable frame rate, most likely
+            }
+
+            ZprojectFunction result = first.zprojectFunction;
+            for (int j = 1; j < segmentCount; j++) {
+                result.merge(segments.get(j).zprojectFunction);
+            }
+            segments.clear();
+            if (statusService != null) {
+                statusService.showStatus("Done!");
+            }
+            return result;
+        } catch (Exception e) {
+            failed.set(true);
+            cancellation.check(); // not a reason to try again sequentially
+            return null;
+        } finally {
+            // something failed halfway. the other segments stop on their own, they only need to be cleaned up
+            for (Future<Segment> future : futures) {
+                try {
+                    Segment segment = future.get();
+                    if (segment != null) {
+                        discard(segment.zprojectFunction);
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+            for (Segment segment : segments) {
+                discard(segment.zprojectFunction);
+            }
+            ProcessingScheduler.releaseWorkers(workers);
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void readFirstSegment(Segment segment, Function<Mat, Mat> chain,
+                                         FrameReader reader, Mat firstFrame, long to,
+                                         AtomicInteger done, ProgressReporter progress) throws Exception {
+        Function<Mat, Mat> process = chain.andThen(segment.zprojectFunction);
+        Cancellation cancellation = Cancellation.current();
+        Mat currentFrame = firstFrame;
+        while (true) {
+            if (currentFrame == null) {
+                segment.reachedEnd = true;
+                break;
+            }
+            if (reader.getLastTimestamp() >= to || cancellation.isCancelled()) {
+                reader.recycle(currentFrame);
+                cancellation.check();
+                break;
+            }
+            ZFHelperMethods.applyToFrame(process, currentFrame);
+            reader.recycle(currentFrame);
+            segment.count++;
+            progress.update(done.incrementAndGet());
+            currentFrame = reader.next();
+        }
+    }
+
+    /**
+     * @return the segment, or null if the seek landed after its start
+     */
+    private static Segment readSegment(ZprojectFunction.OperationMode mode, double percentile, Function<Mat, Mat> chain,
+                                       File inputFile, long from, long to, double frameDuration, AtomicBoolean failed,
+                                       AtomicInteger done, ProgressReporter progress) throws Exception {
+        Segment segment = new Segment();
+        segment.zprojectFunction = new ZprojectFunction(mode, percentile);
+        Function<Mat, Mat> process = chain.andThen(segment.zprojectFunction);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
+             GrayDecoder decoder = GrayDecoder.start(grabber);
+             Mat currentFrame = new Mat()) {
+            grabber.setTimestamp(Math.max(0, from - Math.round(SEEK_MARGIN * frameDuration)));
+            boolean firstGrab = true;
+            Cancellation cancellation = Cancellation.current();
+            while (!failed.get()) {
+                cancellation.check();
+                Frame jcvFrame = grabber.grabImage();
+                if (jcvFrame == null || jcvFrame.image == null) {
+                    segment.reachedEnd = true;
+                    break;
+                }
+                long timestamp = jcvFrame.timestamp;
+                if (firstGrab) {
+                    firstGrab = false;
+                    if (timestamp >= from) {
+                        // can't know if a frame was skipped
+                        failed.set(true);
+                        break;
+                    }
+                }
+                if (timestamp < from) {
+                    continue;
+                }
+                if (timestamp >= to) {
+                    break;
+                }
+                decoder.toGray(jcvFrame, currentFrame, segment.count);
+                ZFHelperMethods.applyToFrame(process, currentFrame);
+                segment.count++;
+                progress.update(done.incrementAndGet());
+            }
+        } catch (Exception e) {
+            failed.set(true);
+            discard(segment.zprojectFunction);
+            throw e;
+        }
+        if (failed.get()) {
+            discard(segment.zprojectFunction);
+            return null;
+        }
+        return segment;
+    }
+
+    private static void discard(ZprojectFunction zprojectFunction) {
+        if (zprojectFunction == null || zprojectFunction.getFramesProcessedCount() == 0) {
+            return;
+        }
+        try {
+            zprojectFunction.getResultMat().close();
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package labmus.animove.utils;
+
+import labmus.animove.ZFHelperMethods;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An output file written in place: under a hidden temporary name next to where it goes, and renamed to it
+ * by {@link #commit()} once complete. The data is written once, on the destination's disk, and a failed or
+ * cancelled run never leaves a half written output behind: {@link #close()} deletes what wasn't committed.
+ * <pre>{@code
+ * try (PendingOutput output = PendingOutput.to(outputFile, "avi")) {
+ *     process(inputFile, output.getFile(), ...);
+ *     File result = output.commit();
+ * }
+ * }</pre>
+ * Without a destination (a preview, or "Save output" unticked) it's a plugin temp file instead.
+ * Once committed, that one stays until exit, as a virtual stack may still be reading from it.
+ */
+public class PendingOutput implements AutoCloseable {
+
+    private final File target;
+    private final File file;
+    private boolean committed = false;
+
+    private PendingOutput(File target, File file) {
+        this.target = target;
+        this.file = file;
+    }
+
+    /**
+     * @param target    where the output goes, null for a temp file
+     * @param extension of the temp file, which picks the format. the target's if there's one
+     */
+    public static PendingOutput to(File target, String extension) throws IOException {
+        if (target == null) {
+            return new PendingOutput(null, ZFHelperMethods.createPluginTempFile(extension));
+        }
+        String name = target.getName();
+        int dot = name.lastIndexOf(".");
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        String targetExtension = dot > 0 ? name.substring(dot + 1) : extension;
+        // same directory, so the rename doesn't move any data. the extension stays last, it picks the format
+        File file = File.createTempFile("." + baseName + "_", ".part." + targetExtension,
+                target.getAbsoluteFile().getParentFile());
+        return new PendingOutput(target, file);
+    }
+
+    /**
+     * Where to write.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Moves the finished output to its destination, replacing whatever is there.
+     * Whether to overwrite an existing output is the caller's decision, made before processing.
+     *
+     * @return the output, the destination if there's one
+     */
+    public File commit() throws IOException {
+        if (target != null) {
+            try {
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // same as the atomic rename does on most systems
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        committed = true;
+        return target != null ? target : file;
+    }
+
+    /**
+     * Deletes the output if it wasn't committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
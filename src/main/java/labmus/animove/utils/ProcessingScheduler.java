@@ -0,0 +1,252 @@
+package labmus.animove.utils;
+
+import ij.IJ;
+import ij.Prefs;
+import labmus.animove.ZFConfigs;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the commands run their work, instead of a new thread per click.
+ * <p>
+ * At most {@value #THREADS_PREF} full runs go at once (2 by default): each one already keeps a few cores busy,
+ * see {@link FramePipeline}. The rest wait, in the order they came. Interactive jobs (previews, first frames)
+ * have their own lane with as many threads, so they start right away even while full runs take hours.
+ * Idle threads go away after a minute, so nothing is left behind once Fiji has nothing to do.
+ * <p>
+ * Work split inside a job (see {@link ParallelZprojector}) runs on one more pool, shared by every job and
+ * capped at the core count: ask for threads with {@link #reserveWorkers} and run on them with {@link #submitWorker}.
+ * <p>
+ * Jobs can be cancelled, see {@link Cancellation}. A command passes itself as the owner of its jobs:
+ * a new interactive job cancels the owner's previous interactive ones, so only the latest preview runs,
+ * and {@link #cancel(Object)} stops everything the owner started.
+ */
+public class ProcessingScheduler {
+
+    public static final String THREADS_PREF = "animove.scheduler.threads";
+    private static final int DEFAULT_THREADS = 2;
+
+    public enum Priority {
+        INTERACTIVE,
+        FULL
+    }
+
+    private static final AtomicLong sequence = new AtomicLong(0);
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+    private static final AtomicBoolean warmedUp = new AtomicBoolean(false);
+    private static final Set<Job<?>> jobs = ConcurrentHashMap.newKeySet();
+    private static final ThreadPoolExecutor fullExecutor = createExecutor("job");
+    private static final ThreadPoolExecutor interactiveExecutor = createExecutor("interactive");
+
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final AtomicInteger reservedWorkers = new AtomicInteger(0);
+    private static final ThreadPoolExecutor workerExecutor = createWorkerExecutor();
+
+    private ProcessingScheduler() {
+    }
+
+    private static ThreadPoolExecutor createExecutor(String lane) {
+        int threads = Math.max(1, (int) Prefs.get(THREADS_PREF, DEFAULT_THREADS));
+        // the queue is unbounded, so the pool never grows past its core size
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, ZFConfigs.pluginName + "-" + lane + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadPoolExecutor createWorkerExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, ZFConfigs.pluginName + "-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadPoolExecutor executorFor(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactiveExecutor : fullExecutor;
+    }
+
+    private static class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+        private final Object owner;
+        private final Priority priority;
+        private final String name;
+        private final Cancellation cancellation;
+        private final long order = sequence.getAndIncrement();
+
+        Job(Object owner, Priority priority, String name, Cancellation cancellation, Runnable task) {
+            super(() -> {
+                Cancellation.setCurrent(cancellation);
+                try {
+                    task.run();
+                } finally {
+                    Cancellation.setCurrent(null);
+                }
+            }, null);
+            this.owner = owner;
+            this.priority = priority;
+            this.name = name;
+            this.cancellation = cancellation;
+        }
+
+        /**
+         * A queued job is dropped. A running one is asked to stop, and keeps its thread until it does.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancellation.cancel();
+            executorFor(priority).remove(this);
+            return super.cancel(false);
+        }
+
+        @Override
+        protected void done() {
+            jobs.remove(this);
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + priority.name().toLowerCase() + ")";
+        }
+    }
+
+    /**
+     * Queues a job. Errors must be handled inside it: nobody looks at the returned future in the commands.
+     *
+     * @param name shown in the status bar while it waits
+     */
+    public static Future<?> submit(Priority priority, String name, Runnable task) {
+        return submit(null, priority, name, task);
+    }
+
+    /**
+     * Same as {@link #submit(Priority, String, Runnable)}, for a job that belongs to owner.
+     * If it's interactive, the owner's previous interactive jobs are cancelled.
+     */
+    public static Future<?> submit(Object owner, Priority priority, String name, Runnable task) {
+        if (owner != null && priority == Priority.INTERACTIVE) {
+            cancel(owner, Priority.INTERACTIVE);
+        }
+        Job<Object> job = new Job<>(owner, priority, name, new Cancellation(), task);
+        jobs.add(job);
+        ThreadPoolExecutor executor = executorFor(priority);
+        int ahead = executor.getActiveCount() + executor.getQueue().size();
+        executor.execute(job);
+        if (ahead >= executor.getMaximumPoolSize()) {
+            IJ.showStatus(name + " queued, " + (ahead - executor.getMaximumPoolSize() + 1) + " job(s) ahead");
+        }
+        return job;
+    }
+
+    /**
+     * Loads FFmpeg and OpenCV in the background, so the first grab is quicker. Only does it once.
+     * Meant for the static blocks of the commands, which run on a menu click.
+     */
+    public static void warmUp() {
+        if (warmedUp.compareAndSet(false, true)) {
+            submit(Priority.INTERACTIVE, "Loading FFmpeg and OpenCV", () -> {
+                // touching them is enough to load the natives
+                Objects.requireNonNull(ZFConfigs.ffmpeg);
+                new OpenCVFrameConverter.ToMat().close();
+            });
+        }
+    }
+
+    /**
+     * Cancels every job of owner, queued or running.
+     */
+    public static void cancel(Object owner) {
+        cancel(owner, null);
+    }
+
+    private static void cancel(Object owner, Priority priority) {
+        for (Job<?> job : jobs) {
+            if (job.owner == owner && (priority == null || job.priority == priority)) {
+                job.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Takes up to wanted threads of the shared worker pool, fewer (maybe none) if other jobs have them.
+     * Give them back with {@link #releaseWorkers} once the tasks submitted on them are done.
+     *
+     * @return how many were taken
+     */
+    public static int reserveWorkers(int wanted) {
+        while (true) {
+            int reserved = reservedWorkers.get();
+            int taken = Math.max(0, Math.min(wanted, WORKER_THREADS - reserved));
+            if (taken == 0 || reservedWorkers.compareAndSet(reserved, reserved + taken)) {
+                return taken;
+            }
+        }
+    }
+
+    public static void releaseWorkers(int count) {
+        reservedWorkers.addAndGet(-count);
+    }
+
+    /**
+     * Runs a task on the shared worker pool. Only as many at once as were reserved, or they wait for a thread.
+     */
+    public static <T> Future<T> submitWorker(Callable<T> task) {
+        return workerExecutor.submit(task);
+    }
+
+    /**
+     * Size of the shared worker pool, the core count.
+     */
+    public static int getWorkerThreads() {
+        return WORKER_THREADS;
+    }
+
+    public static int getRunningCount() {
+        return fullExecutor.getActiveCount() + interactiveExecutor.getActiveCount();
+    }
+
+    public static int getQueuedCount() {
+        return fullExecutor.getQueue().size() + interactiveExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the jobs still waiting, in the order they'll run
+     */
+    public static List<String> getQueuedJobs() {
+        List<Runnable> queued = new ArrayList<>(interactiveExecutor.getQueue());
+        queued.addAll(fullExecutor.getQueue());
+        queued.sort(null);
+        List<String> names = new ArrayList<>();
+        for (Runnable job : queued) {
+            names.add(job.toString());
+        }
+        return names;
+    }
+}
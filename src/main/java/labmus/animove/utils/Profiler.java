@@ -0,0 +1,197 @@
+package labmus.animove.utils;
+
+import ij.Prefs;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Timings for one processing run: per-frame latency of each stage of the function chain, decoding and encoding
+ * included, overall frames per second and native memory. See {@link #writeReport} for the output.
+ * <p>
+ * Chains built with andThen() can't be split afterwards, so commands wrap each function with {@link #wrap}
+ * before chaining them, and pass the profiler on with {@link IterationOptions#setProfiler}.
+ * Decoding and encoding are timed by {@link labmus.animove.ZFHelperMethods#iterateOverFrames} and
+ * {@link labmus.animove.utils.functions.SimpleRecorderFunction}.
+ * <p>
+ * Off unless the ImageJ preference {@value #PROFILE_PREF} is true. When off, wrap() returns the function
+ * as it is and nothing is measured.
+ */
+public class Profiler {
+
+    public static final String PROFILE_PREF = "animove.profile";
+    public static final String DECODE = "decode";
+    public static final String ENCODE = "encode";
+
+    private static final ThreadLocal<Profiler> current = new ThreadLocal<>();
+
+    private final boolean enabled;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private final long startNativeBytes = Pointer.totalBytes();
+    private long endNanos = 0;
+    private long peakNativeBytes = startNativeBytes;
+    private int frames = 0;
+
+    public Profiler() {
+        this(Prefs.get(PROFILE_PREF, false));
+    }
+
+    public Profiler(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the profiler of the frame loop running on this thread, or null outside one
+     */
+    public static Profiler current() {
+        return current.get();
+    }
+
+    /**
+     * Makes this the profiler {@link #current()} returns on this thread, null to clear it.
+     */
+    public static void setCurrent(Profiler profiler) {
+        if (profiler == null) {
+            current.remove();
+        } else {
+            current.set(profiler);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param name shows up in the report. wrapping two functions with the same name adds them up
+     */
+    public Function<Mat, Mat> wrap(String name, Function<Mat, Mat> function) {
+        if (!enabled) {
+            return function;
+        }
+        Stage stage = stage(name);
+        return mat -> {
+            long start = System.nanoTime();
+            Mat result = function.apply(mat);
+            stage.record(System.nanoTime() - start);
+            return result;
+        };
+    }
+
+    /**
+     * For things that aren't functions, like decoding. Can be called from any thread.
+     *
+     * @param startNanos from System.nanoTime(), when the work started
+     */
+    public void record(String name, long startNanos) {
+        if (enabled) {
+            stage(name).record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Called by the frame loop once per frame, after the whole chain ran.
+     */
+    public synchronized void frameDone() {
+        if (!enabled) {
+            return;
+        }
+        frames++;
+        peakNativeBytes = Math.max(peakNativeBytes, Pointer.totalBytes());
+    }
+
+    /**
+     * Called by the frame loop when it's over. Nothing is recorded for the totals after this.
+     */
+    public synchronized void finish() {
+        if (endNanos == 0) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    private synchronized Stage stage(String name) {
+        return stages.computeIfAbsent(name, k -> new Stage());
+    }
+
+    /**
+     * Writes a CSV next to outputFile, named like it with a "_profile.csv" suffix:
+     * one line per stage (count, total, mean, percentiles and max, in ms) and the run totals.
+     *
+     * @return the report, or null if profiling is off
+     */
+    public File writeReport(File outputFile) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        finish();
+        String baseName = outputFile.getName().replaceFirst("[.][^.]+$", "");
+        File reportFile = new File(outputFile.getAbsoluteFile().getParentFile(), baseName + "_profile.csv");
+
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(stages.keySet());
+        }
+        try (PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+            out.println("stage,count,total_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms");
+            for (String name : names) {
+                out.println(stage(name).toCsv(name));
+            }
+            double seconds = (endNanos - startNanos) / 1e9;
+            out.println();
+            out.println("frames," + frames);
+            out.println(String.format(Locale.ROOT, "seconds,%.3f", seconds));
+            out.println(String.format(Locale.ROOT, "fps,%.2f", seconds > 0 ? frames / seconds : 0));
+            out.println("native_bytes_start," + startNativeBytes);
+            out.println("native_bytes_peak," + peakNativeBytes);
+            out.println("native_bytes_end," + Pointer.totalBytes());
+        }
+        return reportFile;
+    }
+
+    /**
+     * Latency histogram with power of two buckets: bucket b holds times in [2^(b-1), 2^b) ns.
+     * Percentiles are the upper bound of their bucket, good to a factor of two.
+     */
+    private static class Stage {
+        private final long[] buckets = new long[65];
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        synchronized void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    return Math.min(maxNanos, b == 0 ? 0 : (b == 64 ? Long.MAX_VALUE : 1L << b));
+                }
+            }
+            return maxNanos;
+        }
+
+        synchronized String toCsv(String name) {
+            return String.format(Locale.ROOT, "%s,%d,%.3f,%.4f,%.4f,%.4f,%.4f,%.4f", name, count,
+                    totalNanos / 1e6, count > 0 ? totalNanos / 1e6 / count : 0,
+                    percentile(0.5) / 1e6, percentile(0.9) / 1e6, percentile(0.99) / 1e6, maxNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package labmus.animove.utils;
+
+import org.scijava.app.StatusService;
+
+/**
+ * Progress bar and status line for frame loops, with frames per second and time left.
+ * <p>
+ * Every StatusService call ends up repainting the status bar. Done for every frame, that costs more
+ * than some of the stages, so updates go out at most every {@value #INTERVAL_MS} ms (and once at the end).
+ * Thread-safe: segments on different threads can share one.
+ */
+public class ProgressReporter {
+
+    private static final long INTERVAL_MS = 250;
+
+    private final StatusService statusService;
+    private final String message;
+    private final int total;
+    private final long startNanos = System.nanoTime();
+    private long lastUpdateNanos = 0;
+
+    /**
+     * @param statusService can be null, then nothing is shown
+     * @param total         frames in the range
+     */
+    public ProgressReporter(StatusService statusService, String message, int total) {
+        this.statusService = statusService;
+        this.message = message;
+        this.total = Math.max(1, total);
+    }
+
+    /**
+     * @param done frames of the range already gone through
+     */
+    public void update(int done) {
+        if (statusService == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (now - lastUpdateNanos < INTERVAL_MS * 1_000_000 && done < total) {
+                return;
+            }
+            lastUpdateNanos = now;
+        }
+        double seconds = (now - startNanos) / 1e9;
+        double fps = seconds > 0 ? done / seconds : 0;
+        String status = message;
+        if (fps > 0) {
+            long secondsLeft = Math.round(Math.max(0, total - done) / fps);
+            status += String.format(" %.1f fps, %d:%02d left", fps, secondsLeft / 60, secondsLeft % 60);
+        }
+        statusService.showStatus(Math.min(done, total), total, status);
+    }
+}
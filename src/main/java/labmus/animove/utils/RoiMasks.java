@@ -0,0 +1,163 @@
+package labmus.animove.utils;
+
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ROI masks as 8-bit Mats, 255 inside and 0 outside, the same pixels as ImageJ's createRoiMask().
+ * <p>
+ * Rectangles are filled directly. Anything else (polygons, ovals, composites...) is rasterized by the ROI itself,
+ * over its bounding box only, and copied straight into the Mat: no full frame ImagePlus, no BufferedImage.
+ * <p>
+ * Only the part inside the bounding box is cached, by ROI geometry and image size, up to {@value #CACHE_PREF}
+ * (64 MB by default). It's pasted into a zeroed frame on every get, so the same plate layout over many heatmaps
+ * is only rasterized once, and a plate of small wells costs the size of its wells, not that many full frames.
+ */
+public class RoiMasks {
+
+    public static final String CACHE_PREF = "animove.masks.cacheMB";
+    private static final double DEFAULT_CACHE_MB = 64;
+
+    /**
+     * The inside of the bounding box, clipped to the image, and where it goes.
+     */
+    private static class BoxMask {
+        final Rectangle bounds;
+        final Mat mask; // null for a plain rectangle, all of it is inside
+
+        BoxMask(Rectangle bounds, Mat mask) {
+            this.bounds = bounds;
+            this.mask = mask;
+        }
+
+        long bytes() {
+            return mask != null ? mask.total() : 0;
+        }
+
+        void close() {
+            if (mask != null) {
+                mask.close();
+            }
+        }
+    }
+
+    // least recently used first
+    private static final LinkedHashMap<String, BoxMask> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes = 0;
+
+    private RoiMasks() {
+    }
+
+    /**
+     * @return a new mask, close it. null without a ROI
+     */
+    public static Mat get(int width, int height, Roi roi) {
+        if (roi == null) {
+            return null;
+        }
+        String key = width + "x" + height + ";" + geometryKey(roi);
+        Mat mask = new Mat(height, width, opencv_core.CV_8UC1, new Scalar(0));
+        synchronized (cache) {
+            BoxMask cached = cache.get(key);
+            if (cached != null) {
+                paste(mask, cached);
+                return mask;
+            }
+        }
+        BoxMask boxMask = rasterize(width, height, roi);
+        paste(mask, boxMask);
+        if (!put(key, boxMask)) {
+            boxMask.close();
+        }
+        return mask;
+    }
+
+    private static void paste(Mat mask, BoxMask boxMask) {
+        Rectangle bounds = boxMask.bounds;
+        if (bounds.isEmpty()) {
+            return;
+        }
+        try (Rect rect = new Rect(bounds.x, bounds.y, bounds.width, bounds.height);
+             Mat target = new Mat(mask, rect)) {
+            if (boxMask.mask == null) {
+                target.put(new Scalar(255));
+            } else {
+                boxMask.mask.copyTo(target);
+            }
+        }
+    }
+
+    private static BoxMask rasterize(int width, int height, Roi roi) {
+        Rectangle bounds = roi.getBounds();
+        Rectangle clipped = bounds.intersection(new Rectangle(0, 0, width, height));
+        ImageProcessor roiMask = roi.getMask(); // null for a plain rectangle
+        if (clipped.isEmpty() || roiMask == null) {
+            return new BoxMask(clipped, null);
+        }
+        // the ROI's mask covers its bounds, which can stick out of the image
+        Mat mask = new Mat(clipped.height, clipped.width, opencv_core.CV_8UC1);
+        byte[] pixels = (byte[]) roiMask.getPixels();
+        int maskWidth = roiMask.getWidth();
+        byte[] row = new byte[clipped.width];
+        for (int y = 0; y < clipped.height; y++) {
+            System.arraycopy(pixels, (clipped.y - bounds.y + y) * maskWidth + clipped.x - bounds.x,
+                    row, 0, clipped.width);
+            mask.ptr(y).put(row);
+        }
+        return new BoxMask(clipped, mask);
+    }
+
+    /**
+     * @return false if it's too big to keep, the caller still owns it then
+     */
+    private static boolean put(String key, BoxMask boxMask) {
+        long bytes = boxMask.bytes();
+        long budget = (long) (Prefs.get(CACHE_PREF, DEFAULT_CACHE_MB) * 1024 * 1024);
+        if (bytes > budget) {
+            return false;
+        }
+        synchronized (cache) {
+            BoxMask previous = cache.put(key, boxMask);
+            if (previous != null) {
+                cachedBytes -= previous.bytes();
+                previous.close();
+            }
+            cachedBytes += bytes;
+            Iterator<Map.Entry<String, BoxMask>> it = cache.entrySet().iterator();
+            while (cachedBytes > budget && it.hasNext()) {
+                BoxMask eldest = it.next().getValue();
+                cachedBytes -= eldest.bytes();
+                eldest.close();
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Type, bounds and outline. Two ROIs with the same key have the same mask.
+     */
+    private static String geometryKey(Roi roi) {
+        Rectangle bounds = roi.getBounds();
+        StringBuilder sb = new StringBuilder(roi.getTypeAsString())
+                .append(';').append(bounds.x).append(',').append(bounds.y)
+                .append(',').append(bounds.width).append(',').append(bounds.height)
+                .append(';').append(roi.getCornerDiameter());
+        FloatPolygon polygon = roi.getFloatPolygon();
+        for (int i = 0; i < polygon.npoints; i++) {
+            sb.append(';').append(polygon.xpoints[i]).append(',').append(polygon.ypoints[i]);
+        }
+        return sb.toString();
+    }
+}
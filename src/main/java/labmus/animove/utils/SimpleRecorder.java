@@ -2,11 +2,11 @@ package labmus.animove.utils;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.plugin.AVI_Reader;
 import io.scif.config.SCIFIOConfig;
 import io.scif.img.ImageRegion;
 import io.scif.img.Range;
-import io.scif.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
 import io.scif.services.DatasetIOService;
 import labmus.animove.ZFConfigs;
 import net.imagej.Dataset;
@@ -21,15 +21,7 @@ import org.bytedeco.opencv.opencv_core.Scalar;
 import org.scijava.ui.DialogPrompt;
 import org.scijava.ui.UIService;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.spi.IIORegistry;
-import javax.imageio.stream.ImageOutputStream;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -41,7 +33,14 @@ import static org.bytedeco.opencv.global.opencv_core.BORDER_CONSTANT;
  * All output is without audio, and all video is high quality.
  * Only codecs that are useful in this context are supported: libx264 and mjpeg.
  * <p>
- * also supports TIFF lossless export
+ * AVI can also be lossless gray (see {@link #setLossless}), for intermediates that go on to be tracked:
+ * raw gray8 by default, which ImageJ opens, or FFV1 if {@value #LOSSLESS_CODEC_PREF} is "ffv1", smaller
+ * but only readable through FFmpeg. {@value #ENCODER_THREADS_PREF} sets the encoder threads, 0 (the default) for auto.
+ * <p>
+ * also supports TIFF lossless export, written by {@link TiffStackWriter}. Uncompressed by default,
+ * set {@value #TIFF_COMPRESSION_PREF} to "deflate" for smaller, slower files.
+ * <p>
+ * Frames are written on the calling thread, unless async mode is on (see {@link #setAsync}).
  */
 public class SimpleRecorder implements AutoCloseable {
 
@@ -49,12 +48,19 @@ public class SimpleRecorder implements AutoCloseable {
         MP4, AVI, TIFF;
     }
 
+    public static final String TIFF_COMPRESSION_PREF = "animove.tiff.compression";
+    public static final String LOSSLESS_CODEC_PREF = "animove.avi.losslessCodec";
+    public static final String ENCODER_THREADS_PREF = "animove.encoder.threads";
+
     private FFmpegFrameRecorder recorder;
 
-    private ImageOutputStream ios;
-    private ImageWriter writer;
-    private ImageWriteParam params;
-    private Java2DFrameConverter biConverter; // todo: don't we need a new one every frame??
+    private TiffStackWriter tiffWriter;
+
+    // converters reuse the Frame they return. never close that Frame, or the next conversion gets a dead one.
+    private final OpenCVFrameConverter.ToMat matConverter = new OpenCVFrameConverter.ToMat();
+    // scratch space reused every frame
+    private final Mat normalizedFrame = new Mat();
+    private final Mat paddedFrame = new Mat();
 
     private final File outputFile;
 
@@ -69,6 +75,13 @@ public class SimpleRecorder implements AutoCloseable {
 
     private boolean isClosed = false;
 
+    private boolean lossless = false;
+
+    // async mode. the stage and its copies are made on the first frame
+    private int asyncCapacity = 0;
+    private EncoderStage asyncStage;
+    private MatPool asyncPool;
+
     private final Scalar blackScalar = new Scalar(0, 0, 0, 0);
 
     public SimpleRecorder(File outputFile, Mat mat, double frameRate) {
@@ -89,20 +102,64 @@ public class SimpleRecorder implements AutoCloseable {
         this(outputFile, grabber.getImageWidth(), grabber.getImageHeight(), grabber.getFrameRate());
     }
 
-    public void start() throws Exception {
-        String extension = outputFile.getName().substring(outputFile.getName().lastIndexOf(".") + 1);
-        if (!extension.equalsIgnoreCase("mp4") && !extension.equalsIgnoreCase("avi")
-                && !extension.equalsIgnoreCase("tif") && !extension.equalsIgnoreCase("tiff")) {
-            throw new Exception("Invalid file extension. Expected .mp4, .avi, .tif or .tiff");
-        }
+    /**
+     * Same size, frame rate and format, another file. Not started.
+     * Used to go on writing in a new file, see {@link labmus.animove.utils.functions.SimpleRecorderFunction#rotate}.
+     */
+    public SimpleRecorder withOutput(File outputFile) {
+        return new SimpleRecorder(outputFile, this.proposedWidth, this.proposedHeight, this.frameRate)
+                .setAsync(this.asyncCapacity)
+                .setLossless(this.lossless);
+    }
 
+    /**
+     * AVI only, ignored otherwise. Frames are written as exact 8-bit gray instead of MJPEG:
+     * no YUV conversion, nothing lost, and cheaper to encode and decode. Color frames are turned gray.
+     * Set it before {@link #start()}.
+     */
+    public SimpleRecorder setLossless(boolean lossless) {
+        this.lossless = lossless;
+        return this;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    /**
+     * Async mode: {@link #recordMat(Mat)} copies the frame and returns, and it's written on a thread of its own.
+     * At most queueCapacity frames wait to be written, past that recordMat() blocks, so memory stays flat.
+     * {@link #close()} writes what's left. A write error comes back on a later recordMat() or on close().
+     * Frames recorded by a cancelled job (see {@link Cancellation}) are dropped instead of written.
+     *
+     * @param queueCapacity 0 to write on the calling thread, the default
+     */
+    public SimpleRecorder setAsync(int queueCapacity) {
+        this.asyncCapacity = Math.max(0, queueCapacity);
+        return this;
+    }
+
+    public boolean isAsync() {
+        return asyncCapacity > 0;
+    }
+
+    /**
+     * @throws Exception if the extension isn't one we write
+     */
+    public static Format formatOf(File file) throws Exception {
+        String extension = file.getName().substring(file.getName().lastIndexOf(".") + 1);
         if (extension.equalsIgnoreCase("mp4")) {
-            this.format = Format.MP4;
+            return Format.MP4;
         } else if (extension.equalsIgnoreCase("avi")) {
-            this.format = Format.AVI;
+            return Format.AVI;
         } else if (extension.equalsIgnoreCase("tif") || extension.equalsIgnoreCase("tiff")) {
-            this.format = Format.TIFF;
+            return Format.TIFF;
         }
+        throw new Exception("Invalid file extension. Expected .mp4, .avi, .tif or .tiff");
+    }
+
+    public void start() throws Exception {
+        this.format = formatOf(outputFile);
 
         switch (this.format) {
             case MP4:
@@ -125,6 +182,10 @@ public class SimpleRecorder implements AutoCloseable {
             case AVI:
                 this.recorder = new FFmpegFrameRecorder(outputFile, 0, 0, 0);
                 recorder.setFormat("avi");
+                if (this.lossless) {
+                    setupLossless();
+                    break;
+                }
                 recorder.setVideoCodec(avcodec.AV_CODEC_ID_MJPEG);
                 recorder.setVideoQuality(2); // visually lossless (2-31) this is the q or qscale:v parameter
                 recorder.setImageWidth(this.proposedWidth);
@@ -138,24 +199,39 @@ public class SimpleRecorder implements AutoCloseable {
                 setupFFmpegRecorder();
                 break;
             case TIFF:
-                IIORegistry.getDefaultInstance().registerServiceProvider(new TIFFImageWriterSpi());
-                this.writer = ImageIO.getImageWritersByFormatName("TIFF").next();
-                this.ios = ImageIO.createImageOutputStream(outputFile);
-                this.writer.setOutput(this.ios);
-                this.biConverter = new Java2DFrameConverter();
-
-                this.params = writer.getDefaultWriteParam();
-                params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                // LZW does good, fast, lossless compression.
-                params.setCompressionType("LZW");
-                writer.prepareWriteSequence(null);
+                // frames go straight from the mat to the file, a BigTIFF if it ends up over 4 GB
+                this.tiffWriter = new TiffStackWriter(outputFile,
+                        Prefs.get(TIFF_COMPRESSION_PREF, "none").equalsIgnoreCase("deflate")
+                                ? TiffStackWriter.Compression.DEFLATE : TiffStackWriter.Compression.NONE);
                 break;
             default:
         }
 
     }
 
+    private void setupLossless() throws FFmpegFrameRecorder.Exception {
+        recorder.setImageWidth(this.proposedWidth);
+        recorder.setImageHeight(this.proposedHeight);
+        recorder.setPixelFormat(avutil.AV_PIX_FMT_GRAY8);
+        if (Prefs.get(LOSSLESS_CODEC_PREF, "raw").equalsIgnoreCase("ffv1")) {
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_FFV1);
+            // version 3 is the one that splits frames in slices, and encodes them in parallel
+            recorder.setVideoOption("level", "3");
+            recorder.setVideoOption("slices", "16");
+            recorder.setVideoOption("slicecrc", "0");
+            recorder.setGopSize(1); // every frame stands alone, so segments can be joined anywhere
+        } else {
+            // 8-bit uncompressed. nothing to encode, and ImageJ's AVI reader opens it
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_RAWVIDEO);
+        }
+        setupFFmpegRecorder();
+    }
+
     private void setupFFmpegRecorder() throws FFmpegFrameRecorder.Exception {
+        int threads = (int) Prefs.get(ENCODER_THREADS_PREF, 0);
+        if (threads > 0) {
+            recorder.setVideoOption("threads", String.valueOf(threads));
+        }
         recorder.setFrameRate(this.frameRate);
         recorder.setAudioCodec(avcodec.AV_CODEC_ID_NONE);
         recorder.setSampleRate(0);
@@ -164,9 +240,42 @@ public class SimpleRecorder implements AutoCloseable {
         this.recorder.start();
     }
 
+    /**
+     * See {@link #recordMat(Mat, OpenCVFrameConverter.ToMat)}. In async mode, the frame is copied
+     * and can be reused right away.
+     */
     public void recordMat(Mat frameMat) throws Exception {
-        try (OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat()) {
-            recordMat(frameMat, converter);
+        if (!isAsync()) {
+            recordMat(frameMat, this.matConverter);
+            return;
+        }
+        if (asyncStage == null) {
+            asyncStage = new EncoderStage(asyncCapacity);
+            asyncPool = new MatPool(asyncCapacity + 2);
+        }
+        Cancellation cancellation = Cancellation.current();
+        Profiler profiler = Profiler.current();
+        Mat copy = asyncPool.acquire(frameMat.rows(), frameMat.cols(), frameMat.type());
+        frameMat.copyTo(copy); // as clone() seems to be leaking
+        try {
+            asyncStage.submit(() -> {
+                try {
+                    if (cancellation.isCancelled()) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    // only this thread uses the converter in async mode
+                    recordMat(copy, this.matConverter);
+                    if (profiler != null) {
+                        profiler.record(Profiler.ENCODE, start);
+                    }
+                } finally {
+                    asyncPool.release(copy);
+                }
+            });
+        } catch (Exception e) {
+            asyncPool.release(copy);
+            throw e;
         }
     }
 
@@ -174,9 +283,10 @@ public class SimpleRecorder implements AutoCloseable {
      * If the output is set to MP4, a row or column will be added to make the number even. It's a codec requirement.
      * If the output is set to AVI or MP4, frames will be normalized to 8bit. It's a codec limitation.
      * If the output is set to TIFF, frames will be normalized to 16bit. 32bit stack is not viewable.
+     * Always written on the calling thread, even in async mode.
      *
      * @param frameMat     Mat to be recorded
-     * @param matConverter One per frame keeps it safe
+     * @param matConverter can be reused for every frame, as long as nothing closes what it returns
      * @throws Exception If anything goes wrong, read the message
      */
     public void recordMat(Mat frameMat, OpenCVFrameConverter.ToMat matConverter) throws Exception {
@@ -184,7 +294,7 @@ public class SimpleRecorder implements AutoCloseable {
         if (frameMat.elemSize1() == 1) { // if it's already 8-bit
             tempFrame = frameMat;
         } else {
-            tempFrame = new Mat();
+            tempFrame = normalizedFrame;
             int pixFmt;
             if (this.format == Format.TIFF) {
                 pixFmt = frameMat.channels() == 1 ? opencv_core.CV_16UC1 : opencv_core.CV_16UC3;
@@ -210,41 +320,25 @@ public class SimpleRecorder implements AutoCloseable {
             case MP4:
                 if (this.refitNeeded) {
                     // add padding
-                    try (Mat frameToRecord = new Mat()) {
-                        opencv_core.copyMakeBorder(tempFrame,
-                                frameToRecord,
-                                0,
-                                this.recorder.getImageHeight() - this.proposedHeight,
-                                0,
-                                this.recorder.getImageWidth() - this.proposedWidth,
-                                BORDER_CONSTANT,
-                                blackScalar); // black
-                        try (Frame frame = matConverter.convert(frameToRecord)) {
-                            this.recorder.record(frame);
-                        }
-                    }
+                    opencv_core.copyMakeBorder(tempFrame,
+                            paddedFrame,
+                            0,
+                            this.recorder.getImageHeight() - this.proposedHeight,
+                            0,
+                            this.recorder.getImageWidth() - this.proposedWidth,
+                            BORDER_CONSTANT,
+                            blackScalar); // black
+                    this.recorder.record(matConverter.convert(paddedFrame));
                 } else {
-                    try (Frame frame = matConverter.convert(tempFrame)) {
-                        this.recorder.record(frame);
-                    }
+                    this.recorder.record(matConverter.convert(tempFrame));
                 }
 
                 break;
             case TIFF:
-                try (Frame frame = matConverter.convert(tempFrame)) {
-                    BufferedImage bi = biConverter.getBufferedImage(frame);
-                    if (bi != null) {
-                        writer.writeToSequence(new IIOImage(bi, null, null), this.params);
-                    } else {
-                        throw new Exception("Error writing frame");
-                    }
-                }
+                this.tiffWriter.writePage(tempFrame);
                 break;
             default:
         }
-        if (tempFrame != frameMat) {
-            tempFrame.close();
-        }
     }
 
     /**
@@ -256,7 +350,14 @@ public class SimpleRecorder implements AutoCloseable {
      */
     public void openResultinIJ(UIService uiService, DatasetIOService datasetIOService, boolean openAllChannels, String displayName) throws Exception {
         this.close();
-        switch (this.format) {
+        openInIJ(outputFile, uiService, datasetIOService, openAllChannels, displayName);
+    }
+
+    /**
+     * Same as {@link #openResultinIJ}, for a file written some other way (joined segments, for instance).
+     */
+    public static void openInIJ(File file, UIService uiService, DatasetIOService datasetIOService, boolean openAllChannels, String displayName) throws Exception {
+        switch (formatOf(file)) {
             case MP4:
                 uiService.showDialog("Can't open MP4 files in ImageJ.", ZFConfigs.pluginName, DialogPrompt.MessageType.WARNING_MESSAGE);
                 break;
@@ -265,7 +366,8 @@ public class SimpleRecorder implements AutoCloseable {
                 config.enableBufferedReading(true); // this is the virtual stack setting
                 config.imgOpenerSetImgModes(SCIFIOConfig.ImgMode.CELL);
                 if (!openAllChannels) {
-                    // tiff will have 3 channels all with the same data. only need to open one.
+                    // a tiff from a color mat will have 3 channels all with the same data. only need to open one.
+                    // a gray one has no channel axis, and the region is ignored
                     Map<AxisType, Range> regionMap = new HashMap<>();
                     regionMap.put(Axes.CHANNEL, new Range(0L));
                     config.imgOpenerSetRegion(new ImageRegion(regionMap));
@@ -273,16 +375,21 @@ public class SimpleRecorder implements AutoCloseable {
                 } else {
                     config.imgOpenerSetImgModes(SCIFIOConfig.ImgMode.CELL, SCIFIOConfig.ImgMode.PLANAR);
                 }
-                Dataset dataset = datasetIOService.open(outputFile.getAbsolutePath(), config);
+                Dataset dataset = datasetIOService.open(file.getAbsolutePath(), config);
                 dataset.setName(displayName);
                 uiService.show(dataset);
                 break;
             case AVI:
+                if (isFFV1(file)) {
+                    uiService.showDialog("Can't open FFV1 files in ImageJ. Other " + ZFConfigs.pluginName
+                            + " commands can read them.", ZFConfigs.pluginName, DialogPrompt.MessageType.WARNING_MESSAGE);
+                    break;
+                }
                 String opt = "virtual";
                 if (!openAllChannels) {
                     opt += "convert";
                 }
-                ImagePlus imp = AVI_Reader.open(outputFile.getAbsolutePath(), opt);
+                ImagePlus imp = AVI_Reader.open(file.getAbsolutePath(), opt);
                 imp.setTitle(displayName);
                 imp.show();
                 // For some reason, datasetIOService.open() would throw an EOFException
@@ -292,12 +399,53 @@ public class SimpleRecorder implements AutoCloseable {
 
     }
 
+    private static boolean isFFV1(File file) throws Exception {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file)) {
+            grabber.start();
+            return grabber.getVideoCodec() == avcodec.AV_CODEC_ID_FFV1;
+        }
+    }
+
+    /**
+     * In async mode, waits for the frames still queued to be written first.
+     */
     @Override
     public void close() throws Exception {
         if (this.isClosed) {
             return;
         }
+        Exception error = null;
+        try {
+            if (asyncStage != null) {
+                asyncStage.drain();
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        // the file is closed either way, whatever was written stays readable
+        try {
+            closeOutput();
+        } catch (Exception e) {
+            if (error == null) {
+                error = e;
+            } else {
+                error.addSuppressed(e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void closeOutput() throws Exception {
+        this.isClosed = true;
+        if (asyncPool != null) {
+            asyncPool.close();
+        }
         blackScalar.close();
+        matConverter.close();
+        normalizedFrame.close();
+        paddedFrame.close();
         switch (this.format) {
             case MP4:
             case AVI:
@@ -306,14 +454,9 @@ public class SimpleRecorder implements AutoCloseable {
                 this.recorder.close();
                 break;
             case TIFF:
-                this.ios.flush();
-                this.writer.endWriteSequence();
-                this.writer.dispose();
-                this.ios.close();
-                this.biConverter.close();
+                this.tiffWriter.close();
                 break;
             default:
         }
-        this.isClosed = true;
     }
 }
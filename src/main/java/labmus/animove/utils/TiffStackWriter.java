@@ -0,0 +1,295 @@
+package labmus.animove.utils;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a TIFF stack straight from the Mats' native memory, one strip per page, through a FileChannel.
+ * <p>
+ * 8 and 16-bit, gray or BGR (written as RGB). Pixel data is written as frames come, the directories (IFDs)
+ * all go at the end on {@link #close()}: by then the size is known, so the file is a classic TIFF if it fits
+ * in 4 GB, and a BigTIFF otherwise. The header has room for either.
+ * <p>
+ * Until it's closed the file can't be read. Not thread-safe.
+ */
+public class TiffStackWriter implements AutoCloseable {
+
+    public enum Compression {
+        NONE(1),
+        // zlib at its fastest. lossless, smaller, but costs time per frame
+        DEFLATE(8);
+
+        private final int code;
+
+        Compression(int code) {
+            this.code = code;
+        }
+    }
+
+    private static final int HEADER_SIZE = 16; // a BigTIFF header. a classic one uses the first 8 bytes
+    private static final long CLASSIC_LIMIT = 0xFFFFFFFFL;
+    private static final short SHORT = 3, LONG = 4, LONG8 = 16;
+    private static final int TAG_COUNT = 10;
+
+    private final FileChannel channel;
+    private final Compression compression;
+    private final ByteOrder order = ByteOrder.nativeOrder(); // so 16-bit data goes out as it is in memory
+
+    // from the first page
+    private int width, height, channels, bytesPerSample = 0;
+
+    private long[] offsets = new long[1024];
+    private long[] byteCounts = new long[1024];
+    private int pages = 0;
+    private long position = HEADER_SIZE;
+
+    // reused every page
+    private final Mat scratch = new Mat();
+    private Deflater deflater;
+    private byte[] raw;
+    private byte[] compressed;
+
+    private boolean closed = false;
+
+    public TiffStackWriter(File file, Compression compression) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.compression = compression;
+        if (compression == Compression.DEFLATE) {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+    }
+
+    /**
+     * Appends a page. Every page must have the size and type of the first one.
+     */
+    public void writePage(Mat mat) throws IOException {
+        if (bytesPerSample == 0) {
+            if ((mat.depth() != opencv_core.CV_8U && mat.depth() != opencv_core.CV_16U)
+                    || (mat.channels() != 1 && mat.channels() != 3)) {
+                throw new IOException("TIFF pages must be 8 or 16-bit, gray or BGR");
+            }
+            width = mat.cols();
+            height = mat.rows();
+            channels = mat.channels();
+            bytesPerSample = (int) mat.elemSize1();
+        } else if (mat.cols() != width || mat.rows() != height || mat.channels() != channels
+                || mat.elemSize1() != bytesPerSample) {
+            throw new IOException("All TIFF pages must have the same size and type");
+        }
+
+        Mat source = mat;
+        if (channels == 3) {
+            opencv_imgproc.cvtColor(mat, scratch, opencv_imgproc.COLOR_BGR2RGB);
+            source = scratch;
+        } else if (!mat.isContinuous()) {
+            mat.copyTo(scratch); // a cropped frame, its rows aren't next to each other
+            source = scratch;
+        }
+        long size = (long) width * height * channels * bytesPerSample;
+        BytePointer data = source.data();
+        ByteBuffer buffer = data.capacity(size).limit(size).asByteBuffer();
+
+        long byteCount;
+        if (compression == Compression.NONE) {
+            byteCount = write(buffer);
+        } else {
+            byteCount = write(ByteBuffer.wrap(compressed, 0, deflate(buffer, (int) size)));
+        }
+
+        if (pages == offsets.length) {
+            offsets = Arrays.copyOf(offsets, pages * 2);
+            byteCounts = Arrays.copyOf(byteCounts, pages * 2);
+        }
+        offsets[pages] = position;
+        byteCounts[pages] = byteCount;
+        pages++;
+        position += byteCount;
+    }
+
+    private int deflate(ByteBuffer buffer, int size) {
+        if (raw == null || raw.length < size) {
+            raw = new byte[size];
+            compressed = new byte[size + size / 16 + 64];
+        }
+        buffer.get(raw, 0, size);
+        deflater.reset();
+        deflater.setInput(raw, 0, size);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    private long write(ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    public int getPageCount() {
+        return pages;
+    }
+
+    /**
+     * Writes the directories and the header, and closes the file.
+     *
+     * @throws IOException also if no page was written, the file is no TIFF then
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeDirectories();
+        } finally {
+            channel.close();
+            scratch.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void writeDirectories() throws IOException {
+        if (pages == 0) {
+            throw new IOException("No pages were written, a TIFF needs at least one");
+        }
+        // TIFF wants the IFDs and the values they point to on a word boundary. compressed strips can end anywhere
+        position += position & 1;
+        // classic IFDs hold 4 bytes per value, BitsPerSample for RGB needs 6: it goes in front of them
+        int extraSize = channels == 3 ? 8 : 0;
+        long classicEnd = position + extraSize + (long) pages * (2 + TAG_COUNT * 12 + 4);
+        boolean big = classicEnd > CLASSIC_LIMIT;
+        int ifdSize = big ? 8 + TAG_COUNT * 20 + 8 : 2 + TAG_COUNT * 12 + 4;
+        if (big) {
+            extraSize = 0;
+        }
+
+        long bitsPerSampleOffset = position;
+        long firstIfd = position + extraSize;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(extraSize + (long) pages * ifdSize)).order(order);
+        if (extraSize > 0) {
+            for (int c = 0; c < 3; c++) {
+                buffer.putShort((short) (bytesPerSample * 8));
+            }
+            buffer.putShort((short) 0);
+        }
+        for (int i = 0; i < pages; i++) {
+            long next = i == pages - 1 ? 0 : firstIfd + (long) (i + 1) * ifdSize;
+            // tags in ascending order
+            if (big) {
+                buffer.putLong(TAG_COUNT);
+            } else {
+                buffer.putShort((short) TAG_COUNT);
+            }
+            putEntry(buffer, big, 256, LONG, 1, width); // ImageWidth
+            putEntry(buffer, big, 257, LONG, 1, height); // ImageLength
+            if (channels == 3 && !big) {
+                // BitsPerSample, the entry only holds where the 3 values are
+                buffer.putShort((short) 258);
+                buffer.putShort(SHORT);
+                buffer.putInt(3);
+                buffer.putInt((int) bitsPerSampleOffset);
+            } else if (channels == 3) {
+                putShorts(buffer, 258, bytesPerSample * 8, bytesPerSample * 8, bytesPerSample * 8);
+            } else {
+                putEntry(buffer, big, 258, SHORT, 1, bytesPerSample * 8); // BitsPerSample
+            }
+            putEntry(buffer, big, 259, SHORT, 1, compression.code); // Compression
+            putEntry(buffer, big, 262, SHORT, 1, channels == 3 ? 2 : 1); // PhotometricInterpretation, RGB or BlackIsZero
+            putEntry(buffer, big, 273, big ? LONG8 : LONG, 1, offsets[i]); // StripOffsets
+            putEntry(buffer, big, 277, SHORT, 1, channels); // SamplesPerPixel
+            putEntry(buffer, big, 278, LONG, 1, height); // RowsPerStrip, one strip
+            putEntry(buffer, big, 279, big ? LONG8 : LONG, 1, byteCounts[i]); // StripByteCounts
+            putEntry(buffer, big, 284, SHORT, 1, 1); // PlanarConfiguration, chunky
+            if (big) {
+                buffer.putLong(next);
+            } else {
+                buffer.putInt((int) next);
+            }
+        }
+        buffer.flip();
+        write(buffer);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(order);
+        header.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        header.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        if (big) {
+            header.putShort((short) 43);
+            header.putShort((short) 8); // offsets are 8 bytes
+            header.putShort((short) 0);
+            header.putLong(firstIfd);
+        } else {
+            header.putShort((short) 42);
+            header.putInt((int) firstIfd);
+        }
+        header.position(0).limit(HEADER_SIZE);
+        long written = 0;
+        while (header.hasRemaining()) {
+            written += channel.write(header, written);
+        }
+    }
+
+    /**
+     * A single value, left justified in the entry's value field like TIFF wants.
+     */
+    private static void putEntry(ByteBuffer buffer, boolean big, int tag, short type, long count, long value) {
+        buffer.putShort((short) tag);
+        buffer.putShort(type);
+        if (big) {
+            buffer.putLong(count);
+        } else {
+            buffer.putInt((int) count);
+        }
+        int fieldSize = big ? 8 : 4;
+        int start = buffer.position();
+        switch (type) {
+            case SHORT:
+                buffer.putShort((short) value);
+                break;
+            case LONG:
+                buffer.putInt((int) value);
+                break;
+            default:
+                buffer.putLong(value);
+                break;
+        }
+        while (buffer.position() < start + fieldSize) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Three SHORTs fit in a BigTIFF entry.
+     */
+    private static void putShorts(ByteBuffer buffer, int tag, int a, int b, int c) {
+        buffer.putShort((short) tag);
+        buffer.putShort(SHORT);
+        buffer.putLong(3);
+        buffer.putShort((short) a);
+        buffer.putShort((short) b);
+        buffer.putShort((short) c);
+        buffer.putShort((short) 0);
+    }
+}
@@ -0,0 +1,65 @@
+package labmus.animove.utils;
+
+import java.util.Properties;
+
+/**
+ * What the commands need to know about a video before processing it.
+ * See {@link labmus.animove.ZFHelperMethods#probeVideo}.
+ */
+public class VideoInfo {
+
+    private final double frameRate;
+    private final int width;
+    private final int height;
+    private final int lengthInFrames; // as imprecise as grabber.getLengthInFrames()
+
+    public VideoInfo(double frameRate, int width, int height, int lengthInFrames) {
+        this.frameRate = frameRate;
+        this.width = width;
+        this.height = height;
+        this.lengthInFrames = lengthInFrames;
+    }
+
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLengthInFrames() {
+        return lengthInFrames;
+    }
+
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("frameRate", Double.toString(frameRate));
+        properties.setProperty("width", Integer.toString(width));
+        properties.setProperty("height", Integer.toString(height));
+        properties.setProperty("lengthInFrames", Integer.toString(lengthInFrames));
+        return properties;
+    }
+
+    /**
+     * @return null if the properties are missing or incomplete
+     */
+    public static VideoInfo fromProperties(Properties properties) {
+        if (properties == null) {
+            return null;
+        }
+        try {
+            return new VideoInfo(
+                    Double.parseDouble(properties.getProperty("frameRate")),
+                    Integer.parseInt(properties.getProperty("width")),
+                    Integer.parseInt(properties.getProperty("height")),
+                    Integer.parseInt(properties.getProperty("lengthInFrames")));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -6,37 +6,78 @@ import org.bytedeco.javacpp.indexer.FloatIndexer;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
 
 import java.util.function.Function;
 
-public class AdjustBrightnessUsingThreshold implements Function<Mat, Mat> {
+/**
+ * Stretches each frame from a fraction of its Yen threshold up to its max, both taken inside the mask.
+ * <p>
+ * The threshold barely moves from one frame to the next, so it can be computed on a subsampled frame,
+ * only every few frames, and smoothed over time. Buffers are kept from frame to frame:
+ * frames must come in order, and each thread needs its own instance.
+ */
+public class AdjustBrightnessUsingThreshold implements Function<Mat, Mat>, AutoCloseable {
 
     private final double factor;
     private final Mat mask;
+    private final int subsample;
+    private final int every;
+    private final double smoothing;
+
+    private final AutoThresholder thresholder = new AutoThresholder();
+    private final int[] histogram = new int[256];
+    private final int[] channels = {0};
+    private final int[] histSize = {256};
+    private final float[] histRange = {0f, 256f};
+    private final Mat histMat = new Mat();
+    private final Mat smallMat = new Mat();
+    private Mat smallMask; // the mask, subsampled. made on the first frame
+    private final Mat noMask = new Mat();
+    private final DoublePointer max = new DoublePointer(1);
+
+    private int frameCount = 0;
+    private double threshold = Double.NaN;
 
     public AdjustBrightnessUsingThreshold(double factor, Mat mask) {
+        this(factor, mask, 1, 1, 1);
+    }
+
+    /**
+     * @param mask      only what's inside counts, for the threshold and the max. null for the whole frame
+     * @param subsample the threshold is computed on evenly picked pixels, 1 in subsample² of them. 1 for all of them
+     * @param every     the threshold is computed every that many frames, and kept in between. 1 for every frame
+     * @param smoothing how much a new threshold moves the one in use, from 0 (excluded) to 1 (all the way)
+     */
+    public AdjustBrightnessUsingThreshold(double factor, Mat mask, int subsample, int every, double smoothing) {
+        if (subsample < 1 || every < 1 || !(smoothing > 0 && smoothing <= 1)) {
+            throw new IllegalArgumentException("Invalid threshold sampling");
+        }
         this.factor = factor;
         this.mask = mask;
+        this.subsample = subsample;
+        this.every = every;
+        this.smoothing = smoothing;
     }
 
     @Override
     public Mat apply(Mat mat) {
+        if (frameCount++ % every == 0) {
+            int newThreshold = getYenThreshold(mat);
+            threshold = Double.isNaN(threshold) ? newThreshold : threshold + smoothing * (newThreshold - threshold);
+        }
 
-        int threshold = getYenThreshold(mat);
-
-        DoublePointer max = new DoublePointer(1);
         opencv_core.minMaxLoc(mat, null, max, null, null, mask);
 
         double minVal = threshold * this.factor;
 
-        double alpha = 255.0 / (max.get() - minVal);
+        // a frame that's all below the threshold would divide by zero or less
+        double alpha = 255.0 / Math.max(1, max.get() - minVal);
         double beta = -minVal * alpha;
 
         mat.convertTo(mat, opencv_core.CV_8UC1, alpha, beta);
 //        opencv_core.normalize(mat, mat, 0, 255, opencv_core.NORM_MINMAX, opencv_core.CV_8UC1, mask);
 
-        max.close();
-
         return mat;
     }
 
@@ -44,20 +85,28 @@ public class AdjustBrightnessUsingThreshold implements Function<Mat, Mat> {
      * @param grayMat The input grayscale Mat (must be 8-bit, 1-channel: CV_8UC1).
      * @return The calculated threshold value as an integer.
      */
-    private static int getYenThreshold(Mat grayMat) {
-        int[] histSize = { 256 };
-        int[] channels = { 0 };
-
-        float[] histRange = { 0f, 256f };
+    private int getYenThreshold(Mat grayMat) {
+        Mat histInput = grayMat;
+        Mat histMask = mask;
+        if (subsample > 1) {
+            // nearest neighbour picks pixels, it doesn't average them: the histogram keeps its shape
+            Size size = new Size((grayMat.cols() + subsample - 1) / subsample, (grayMat.rows() + subsample - 1) / subsample);
+            opencv_imgproc.resize(grayMat, smallMat, size, 0, 0, opencv_imgproc.INTER_NEAREST);
+            if (mask != null && smallMask == null) {
+                smallMask = new Mat();
+                opencv_imgproc.resize(mask, smallMask, size, 0, 0, opencv_imgproc.INTER_NEAREST);
+            }
+            size.close();
+            histInput = smallMat;
+            histMask = smallMask;
+        }
 
-        Mat histMat = new Mat();
-        Mat cleanMat = new Mat();
         opencv_imgproc.calcHist(
-                grayMat,    // MatVector of images
+                histInput,    // MatVector of images
                 1,         // int nimages (This is the explicit param you asked about)
                 channels,  // int[] channels
-                cleanMat,      // Mat mask
-                histMat,   // Mat hist (output)
+                histMask != null ? histMask : noMask,      // Mat mask
+                histMat,   // Mat hist (output). same size every time, so it's reused
                 1,         // int dims (This is the other explicit param)
                 histSize,  // int[] histSize
                 histRange  // FloatPointer ranges
@@ -65,24 +114,24 @@ public class AdjustBrightnessUsingThreshold implements Function<Mat, Mat> {
 
         // We must use an Indexer to safely access Mat data in Bytedeco
         // The histogram Mat is 256x1 and of type CV_32F (float)
-        FloatIndexer histIndexer = histMat.createIndexer();
-        int[] ijHistogram = new int[256];
-
-        for (int i = 0; i < 256; i++) {
-            ijHistogram[i] = (int) histIndexer.get(i);
+        try (FloatIndexer histIndexer = histMat.createIndexer()) {
+            for (int i = 0; i < 256; i++) {
+                histogram[i] = (int) histIndexer.get(i);
+            }
         }
 
         // --- Step 3: Get Threshold from ImageJ ---
-        AutoThresholder thresholder = new AutoThresholder();
-        int threshold = thresholder.getThreshold(
-                AutoThresholder.Method.Yen,
-                ijHistogram
-        );
+        return thresholder.getThreshold(AutoThresholder.Method.Yen, histogram);
+    }
 
-        histIndexer.close();
+    @Override
+    public void close() {
         histMat.close();
-        cleanMat.close();
-
-        return threshold;
+        smallMat.close();
+        noMask.close();
+        if (smallMask != null) {
+            smallMask.close();
+        }
+        max.close();
     }
 }
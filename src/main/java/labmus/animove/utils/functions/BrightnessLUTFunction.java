@@ -3,7 +3,10 @@ package labmus.animove.utils.functions;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.plugin.LutLoader;
+import ij.process.ByteProcessor;
 import labmus.animove.ZFHelperMethods;
+import labmus.animove.utils.AutoContrast;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.Java2DFrameConverter;
 import org.bytedeco.javacv.OpenCVFrameConverter;
@@ -11,80 +14,107 @@ import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
 import java.util.function.Function;
 
 import static labmus.animove.processing.heatmaps.HeatmapSumImages.defaultLut;
-import static org.bytedeco.opencv.global.opencv_imgproc.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_GRAY2BGR;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
 
+/**
+ * Turns a sum of frames into something to look at: 8-bit, stretched, and colored with an ImageJ LUT.
+ * <p>
+ * Inside the ROI, its min to its max is stretched over the whole range, like ImageJ's auto contrast
+ * with the ROI selected. Outside, the whole image is just normalized. The LUT is turned into a 256 entry
+ * BGR table once and applied with OpenCV, so nothing goes through ImageJ per frame, and it runs headless.
+ * <p>
+ * Returns a new 8-bit BGR mat, or a gray one with {@link labmus.animove.processing.heatmaps.HeatmapSumImages#defaultLut},
+ * and closes the one it got.
+ */
 public class BrightnessLUTFunction implements Function<Mat, Mat> {
 
     private final Roi roi;
-    private final String lut;
-    private BufferedImage lastBi;
+    private final Mat lutMat; // 1x256 CV_8UC3, null for the default LUT
+    private Mat mask; // of the ROI, made on the first frame
+    private final Mat stretched = new Mat();
 
     public BrightnessLUTFunction(Roi roi, String lut) {
         this.roi = roi;
-        this.lut = lut;
+        this.lutMat = lut.contains(defaultLut) ? null : createLutMat(lut);
+    }
+
+    /**
+     * The LUT as a table for opencv_core.LUT(). ImageJ's own LUTs and the ones in its luts folder are read directly,
+     * anything else the LUT menu can run is run once on a 256 pixel ramp and read back.
+     */
+    private static Mat createLutMat(String lut) {
+        ColorModel colorModel = LutLoader.getLut(lut);
+        if (colorModel == null) {
+            ImagePlus ramp = new ImagePlus("LUT", new ByteProcessor(256, 1));
+            IJ.run(ramp, lut, "");
+            colorModel = ramp.getProcessor().getColorModel();
+            ramp.close();
+        }
+        if (!(colorModel instanceof IndexColorModel)) {
+            throw new IllegalArgumentException("Could not load LUT: " + lut);
+        }
+        IndexColorModel icm = (IndexColorModel) colorModel;
+        byte[] table = new byte[256 * 3];
+        for (int i = 0; i < 256; i++) {
+            // a LUT with fewer entries repeats its last one
+            int entry = Math.min(i, icm.getMapSize() - 1);
+            table[i * 3] = (byte) icm.getBlue(entry);
+            table[i * 3 + 1] = (byte) icm.getGreen(entry);
+            table[i * 3 + 2] = (byte) icm.getRed(entry);
+        }
+        Mat lutMat = new Mat(1, 256, opencv_core.CV_8UC3);
+        lutMat.data().put(table);
+        return lutMat;
     }
 
     @Override
     public Mat apply(Mat sumMat) {
-        Mat mat = new Mat(sumMat.rows(), sumMat.cols(), opencv_core.CV_16UC1);
-        opencv_core.normalize(
-                sumMat,
-                mat,
-                0,
-                Math.pow(2, 16) - 1,
-                opencv_core.NORM_MINMAX,
-                opencv_core.CV_16UC1,
-                null);
+        if (mask == null && roi != null) {
+            mask = ZFHelperMethods.getMaskMatFromRoi(sumMat.cols(), sumMat.rows(), roi);
+        }
+        Mat gray = new Mat();
+        if (mask != null) {
+            AutoContrast.stretch(sumMat, gray, opencv_core.CV_8U, AutoContrast.minMax(sumMat, null), 255);
+            AutoContrast.stretch(sumMat, stretched, opencv_core.CV_8U, AutoContrast.minMax(sumMat, mask), 256);
+            stretched.copyTo(gray, mask);
+        } else {
+            AutoContrast.stretch(sumMat, gray, opencv_core.CV_8U, AutoContrast.minMax(sumMat, null), 256);
+        }
         sumMat.close();
+        if (lutMat == null) {
+            return gray;
+        }
+        Mat bgr = new Mat();
+        cvtColor(gray, bgr, COLOR_GRAY2BGR);
+        gray.close();
+        opencv_core.LUT(bgr, lutMat, bgr);
+        return bgr;
+    }
+
+    /**
+     * For what needs the result as an image, like {@link labmus.animove.processing.heatmaps.HeatmapSumImages}.
+     */
+    public static BufferedImage toBufferedImage(Mat mat) {
         try (OpenCVFrameConverter.ToMat matConverter = new OpenCVFrameConverter.ToMat();
              Java2DFrameConverter biConverter = new Java2DFrameConverter();
              Frame frame = matConverter.convert(mat)) {
-
-            ImagePlus imp = new ImagePlus("LUT", biConverter.convert(frame));
-            imp.setRoi(roi); // todo: this can be replaced by convertTo like ThresholdBrightnessFunction... or just a normalize
-            ZFHelperMethods.autoAdjustBrightnessStack(imp, true);
-            imp.deleteRoi();
-            if (!lut.contains(defaultLut)) {
-//                    yes, there 's a way to apply LUT using opencv_core.LUT();
-//                    but there 's no clear path to convert imageJ LUT' s to a valid openCV LUT.
-                IJ.run(imp, this.lut, "");
-            }
-            ImagePlus impLUT = imp.flatten();
-
-            this.lastBi = impLUT.getBufferedImage();
-
-            // imp.getBufferedImage() returns a RGBA image, and openCV uses a BGR mat
-            Mat matRGB = matConverter.convert(biConverter.getFrame(this.lastBi, 1.0, true));
-            Mat matBGR = new Mat();
-
-            if (matRGB.channels() == 4) {
-                cvtColor(matRGB, matBGR, COLOR_BGRA2BGR);
-            } else {
-                matBGR = matRGB.clone();
-            }
-            matRGB.close();
-
-            if (!lut.contains(defaultLut)) {
-                return matBGR;
-            } else {
-                Mat matGrey = new Mat();
-                cvtColor(matBGR, matGrey, COLOR_BGR2GRAY);
-                matBGR.close();
-                return matGrey;
-            }
-
+            return biConverter.convert(frame);
         }
     }
 
     public void close() {
-        this.lastBi.flush();
-        this.lastBi = null;
-    }
-
-    public BufferedImage getLastBi() {
-        return lastBi;
+        if (lutMat != null) {
+            lutMat.close();
+        }
+        if (mask != null) {
+            mask.close();
+        }
+        stretched.close();
     }
 }
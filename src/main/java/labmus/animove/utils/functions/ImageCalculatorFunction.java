@@ -51,17 +51,17 @@ public class ImageCalculatorFunction implements Function<Mat, Mat> {
 
     @Override
     public Mat apply(Mat grayMatFrame) {
-        Mat resultFrame = new Mat();
+        // in place, frames are 8-bit already. saturation works the same way
         switch (mode) {
             case ADD:
-                add(grayMatFrame, inputImage, resultFrame, null, opencv_core.CV_8UC1);
+                add(grayMatFrame, inputImage, grayMatFrame, null, opencv_core.CV_8UC1);
                 break;
             case SUBTRACT:
-                subtract(grayMatFrame, inputImage, resultFrame, null, opencv_core.CV_8UC1);
+                subtract(grayMatFrame, inputImage, grayMatFrame, null, opencv_core.CV_8UC1);
                 break;
             default:
                 break; // this is not happening lol
         }
-        return resultFrame;
+        return grayMatFrame;
     }
 }
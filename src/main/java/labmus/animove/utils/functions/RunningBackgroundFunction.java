@@ -0,0 +1,75 @@
+package labmus.animove.utils.functions;
+
+import labmus.animove.utils.ParallelZprojector;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.scijava.app.StatusService;
+
+import java.io.File;
+import java.util.function.Function;
+
+/**
+ * Background removal in the same pass as everything else: adds the inverted background to each frame,
+ * like {@link ImageCalculatorFunction} ADD with a precomputed one, so the background turns white
+ * and whatever is darker than it stays.
+ * <p>
+ * The background is a running average of the frames, each one weighing 1 / {@value #MEMORY_SECONDS} seconds of video.
+ * It starts from the median of a few evenly spaced frames (see {@link #initialBackground}), so the first frames
+ * already have a decent one, and then follows slow changes like lighting drifting over a long session.
+ * An animal resting in one place for minutes slowly fades into it.
+ * <p>
+ * Keeps state from frame to frame: frames must come in order, and each thread needs its own instance.
+ */
+public class RunningBackgroundFunction implements Function<Mat, Mat>, AutoCloseable {
+
+    // frames read up front for the initial background
+    private static final int INITIAL_SAMPLES = 30;
+    // how far back the running average remembers
+    private static final double MEMORY_SECONDS = 300;
+
+    private final Mat background = new Mat(); // CV_32FC1
+    private final Mat invertedBackground = new Mat();
+    private final double memoryFrames;
+    private double weight;
+
+    /**
+     * @param initialBackground from {@link #initialBackground}. only read, it can be shared
+     * @param fps               of the video, to turn {@value #MEMORY_SECONDS} seconds into frames
+     */
+    public RunningBackgroundFunction(Mat initialBackground, double fps) {
+        initialBackground.convertTo(background, opencv_core.CV_32FC1);
+        this.memoryFrames = Math.max(1, (fps > 0 ? fps : 30) * MEMORY_SECONDS);
+        this.weight = INITIAL_SAMPLES;
+    }
+
+    /**
+     * The median of a few evenly spaced frames of the whole video, whatever range is processed: a short one
+     * can hold no keyframe to sample from. Cached, see {@link ParallelZprojector#projectSampled}.
+     * Close it.
+     */
+    public static Mat initialBackground(File inputFile, StatusService statusService) throws Exception {
+        return ParallelZprojector.projectSampled(ZprojectFunction.OperationMode.MEDIAN, "none", Function::identity,
+                inputFile, 1, 0, INITIAL_SAMPLES, statusService);
+    }
+
+    @Override
+    public Mat apply(Mat grayMatFrame) {
+        // the frame is subtracted from the background as it was before it
+        background.convertTo(invertedBackground, opencv_core.CV_8UC1, -1, 255);
+
+        // a plain average until the memory is full, then an exponential one
+        weight++;
+        opencv_imgproc.accumulateWeighted(grayMatFrame, background, 1.0 / Math.min(weight, memoryFrames));
+
+        // in place, same as ImageCalculatorFunction
+        opencv_core.add(grayMatFrame, invertedBackground, grayMatFrame, null, opencv_core.CV_8UC1);
+        return grayMatFrame;
+    }
+
+    @Override
+    public void close() {
+        background.close();
+        invertedBackground.close();
+    }
+}
@@ -2,40 +2,133 @@ package labmus.animove.utils.functions;
 
 import ij.IJ;
 import labmus.animove.ZFConfigs;
+import labmus.animove.utils.Cancellation;
+import labmus.animove.utils.EncoderStage;
+import labmus.animove.utils.FramePipeline;
+import labmus.animove.utils.MatPool;
+import labmus.animove.utils.Profiler;
 import labmus.animove.utils.SimpleRecorder;
+import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.scijava.ui.DialogPrompt;
 import org.scijava.ui.UIService;
 
+import java.io.File;
 import java.util.function.Function;
 
 /**
  * this is actually a consumer. the function just passes the input mat ahead.
+ * <p>
+ * Frames are never written on the processing thread: inside a {@link FramePipeline} they go to its encoder stage,
+ * anywhere else the recorder is put in async mode (see {@link SimpleRecorder#setAsync}).
  */
 public class SimpleRecorderFunction implements Function<Mat, Mat>, AutoCloseable {
-    private final SimpleRecorder recorder;
+    // frames waiting to be written outside a pipeline
+    private static final int ASYNC_QUEUE_CAPACITY = 8;
+
+    // replaced by rotate(). only the thread that writes frames touches it after that
+    private volatile SimpleRecorder recorder;
+    // copies handed to the encoder stage. they come back once written
+    private final MatPool copyPool = new MatPool(16);
+    // only used on the encoder stage
+    private final OpenCVFrameConverter.ToMat stageConverter = new OpenCVFrameConverter.ToMat();
 
     private final UIService uiService;
+
+    /**
+     * @param uiService where write errors are shown. null to throw them instead (headless)
+     */
     public SimpleRecorderFunction(SimpleRecorder recorder, UIService uiService) throws Exception {
-        this.recorder = recorder;
+        this.recorder = recorder.setAsync(ASYNC_QUEUE_CAPACITY);
         this.uiService = uiService;
         this.recorder.start();
     }
 
     @Override
     public Mat apply(Mat mat) {
+        Profiler profiler = Profiler.current();
+        EncoderStage encoderStage = FramePipeline.currentEncoderStage();
+        if (encoderStage != null) {
+            recordOnStage(encoderStage, mat, profiler);
+            return mat;
+        }
         try {
+            // copied and written on the recorder's own thread, which does the profiling
             this.recorder.recordMat(mat);
         } catch (Exception e) {
+            if (uiService == null) {
+                throw new RuntimeException("An error occurred when writing the video to a file: " + e.getMessage(), e);
+            }
             IJ.log(e.getMessage());
             uiService.showDialog("An error occurred when writing the video to a file: " + e.getMessage(), ZFConfigs.pluginName, DialogPrompt.MessageType.ERROR_MESSAGE);
         }
         return mat;
     }
 
+    /**
+     * Inside a pipeline the next stages may close or change the mat before it is written,
+     * so the encoder gets its own copy.
+     * Errors are not shown here: they stop the pipeline, and the command reports them.
+     * Once the job is cancelled, frames still in the queue are dropped instead of written.
+     */
+    private void recordOnStage(EncoderStage encoderStage, Mat mat, Profiler profiler) {
+        Cancellation cancellation = Cancellation.current();
+        Mat copy = copyPool.acquire(mat.rows(), mat.cols(), mat.type());
+        mat.copyTo(copy); // as clone() seems to be leaking
+        try {
+            encoderStage.submit(() -> {
+                try {
+                    if (cancellation.isCancelled()) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    // already off the processing thread, no need for the recorder's own
+                    this.recorder.recordMat(copy, stageConverter);
+                    if (profiler != null) {
+                        profiler.record(Profiler.ENCODE, start);
+                    }
+                } finally {
+                    copyPool.release(copy);
+                }
+            });
+        } catch (Exception e) {
+            copyPool.release(copy);
+            throw new RuntimeException("An error occurred when writing the video to a file: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the file being written and goes on in nextFile. Frames already passed to apply() end up in the old file.
+     * Inside a pipeline this happens on the encoder stage, after those frames are written, and so does afterClose.
+     *
+     * @param afterClose runs once the old file is complete. can be null
+     */
+    public void rotate(File nextFile, EncoderStage.Task afterClose) throws Exception {
+        EncoderStage.Task task = () -> {
+            SimpleRecorder next = this.recorder.withOutput(nextFile);
+            this.recorder.close();
+            next.start();
+            this.recorder = next;
+            if (afterClose != null) {
+                afterClose.run();
+            }
+        };
+        EncoderStage encoderStage = FramePipeline.currentEncoderStage();
+        if (encoderStage != null) {
+            encoderStage.submit(task);
+        } else {
+            task.run();
+        }
+    }
+
     @Override
     public void close() throws Exception {
-        this.recorder.close();
+        try {
+            this.recorder.close();
+        } finally {
+            this.copyPool.close();
+            this.stageConverter.close();
+        }
     }
 
     public SimpleRecorder getRecorder() {
@@ -1,8 +1,14 @@
 package labmus.animove.utils.functions;
 
+import labmus.animove.utils.FrameReservoir;
 import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.function.Function;
 
 /**
@@ -11,6 +17,12 @@ import java.util.function.Function;
  * resulting image to the output file.
  * Converts the frames to grayscale, operates on a specific frame range.
  * <p>
+ * MEDIAN and PERCENTILE can't be computed as frames go by. They keep evenly spaced frames
+ * in a {@link FrameReservoir}, within a memory budget, and compute the result at the end.
+ * <p>
+ * STD and VARIANCE keep a running mean and sum of squared differences from it (Welford's method),
+ * in 64-bit, so hours of video don't lose precision the way a sum of squares would. The result is the sample
+ * variance (or its square root), like ImageJ's standard deviation projection, as a 32-bit image.
  */
 public class ZprojectFunction implements Function<Mat, Mat> {
 
@@ -18,7 +30,11 @@ public class ZprojectFunction implements Function<Mat, Mat> {
         MIN("Darkest (Min)"),
         MAX("Brightest (Max)"),
         AVG("Average"),
-        SUM("Sum");
+        SUM("Sum"),
+        MEDIAN("Median"),
+        PERCENTILE("Percentile"),
+        STD("Standard Deviation"),
+        VARIANCE("Variance");
 
 
         private final String text;
@@ -50,34 +66,123 @@ public class ZprojectFunction implements Function<Mat, Mat> {
     }
 
     private Mat accumulator;
+    private FrameReservoir reservoir; // MEDIAN and PERCENTILE
+    private Mat m2; // STD and VARIANCE: sum of squared differences from the mean, which is in the accumulator
+    private Mat sample; // STD and VARIANCE: reused every frame
+    private Mat delta;
     private final OperationMode mode;
+    private final double percentile;
     private int framesProcessedCount = 0;
     private final boolean returnAccumulator;
 
     public ZprojectFunction(OperationMode mode) {
-        this.mode = mode;
-        this.returnAccumulator = false;
+        this(mode, false);
     }
 
     public ZprojectFunction(OperationMode mode, boolean returnAccumulator) {
+        this(mode, defaultPercentile(mode), returnAccumulator);
+    }
+
+    /**
+     * @param percentile from 0 to 100, for PERCENTILE. ignored by the other modes, MEDIAN is always 50
+     */
+    public ZprojectFunction(OperationMode mode, double percentile) {
+        this(mode, percentile, false);
+    }
+
+    private ZprojectFunction(OperationMode mode, double percentile, boolean returnAccumulator) {
+        if (mode == OperationMode.MEDIAN) {
+            // callers pass the dialog's percentile whatever the mode. it must not turn a median into something else
+            percentile = defaultPercentile(mode);
+        }
+        if (isPercentile(mode)) {
+            if (Double.isNaN(percentile) || percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (returnAccumulator) {
+                // a percentile per frame would cost a pass over the whole reservoir each time
+                throw new IllegalArgumentException(mode + " can't return the accumulator");
+            }
+        }
         this.mode = mode;
+        this.percentile = percentile;
         this.returnAccumulator = returnAccumulator;
     }
 
+    /**
+     * @return 50 for MEDIAN, NaN for the modes that don't use it or need one given
+     */
+    public static double defaultPercentile(OperationMode mode) {
+        return mode == OperationMode.MEDIAN ? 50 : Double.NaN;
+    }
+
+    private static boolean isPercentile(OperationMode mode) {
+        return mode == OperationMode.MEDIAN || mode == OperationMode.PERCENTILE;
+    }
+
+    private static boolean isVariance(OperationMode mode) {
+        return mode == OperationMode.STD || mode == OperationMode.VARIANCE;
+    }
+
+    /**
+     * The sample variance, or its square root for STD, as 32-bit. 0 everywhere after a single frame.
+     */
+    private Mat varianceResult() {
+        Mat result = new Mat();
+        m2.convertTo(result, opencv_core.CV_32FC1, 1.0 / Math.max(1, framesProcessedCount - 1), 0);
+        if (mode == OperationMode.STD) {
+            opencv_core.sqrt(result, result);
+        }
+        return result;
+    }
+
+    private void closeVariance() {
+        for (Mat mat : new Mat[]{accumulator, m2, sample, delta}) {
+            if (mat != null) {
+                mat.close();
+            }
+        }
+        accumulator = null;
+        m2 = null;
+        sample = null;
+        delta = null;
+    }
+
 
     /**
      * you really need to close this mat. please. it leaks.
      **/
     public Mat getResultMat() throws Exception {
+        if (isPercentile(mode)) {
+            if (reservoir == null) {
+                throw new Exception("No frames were processed.");
+            }
+            try {
+                return reservoir.percentile(percentile);
+            } finally {
+                reservoir.close();
+                reservoir = null;
+            }
+        }
         if (accumulator == null) {
             throw new Exception("No frames were processed.");
         }
+        if (isVariance(mode)) {
+            try {
+                return varianceResult();
+            } finally {
+                closeVariance();
+            }
+        }
         Mat resultMat;
         if (mode == OperationMode.AVG) {
             // The logic is: you opened a video file, which can only be 8-bit. No need to save anything higher than that.
             resultMat = new Mat();
             double scale = 1.0 / framesProcessedCount;
             accumulator.convertTo(resultMat, opencv_core.CV_8UC1, scale, 0);
+        } else if (mode == OperationMode.SUM) {
+            resultMat = new Mat();
+            accumulator.convertTo(resultMat, opencv_core.CV_32FC1);
         } else {
             resultMat = accumulator;
         }
@@ -89,12 +194,39 @@ public class ZprojectFunction implements Function<Mat, Mat> {
 
     @Override
     public Mat apply(Mat currentFrame) {
+        if (isPercentile(mode)) {
+            if (reservoir == null) {
+                reservoir = new FrameReservoir();
+            }
+            reservoir.add(currentFrame);
+            framesProcessedCount++;
+            return currentFrame;
+        }
+        if (isVariance(mode)) {
+            framesProcessedCount++;
+            if (accumulator == null) {
+                accumulator = new Mat();
+                currentFrame.convertTo(accumulator, opencv_core.CV_64FC1);
+                m2 = new Mat(accumulator.rows(), accumulator.cols(), opencv_core.CV_64FC1, new Scalar(0));
+                sample = new Mat();
+                delta = new Mat();
+            } else {
+                currentFrame.convertTo(sample, opencv_core.CV_64FC1);
+                opencv_core.subtract(sample, accumulator, delta); // from the old mean
+                opencv_core.scaleAdd(delta, 1.0 / framesProcessedCount, accumulator, accumulator);
+                opencv_core.subtract(sample, accumulator, sample); // from the new one
+                opencv_imgproc.accumulateProduct(delta, sample, m2);
+            }
+            return returnAccumulator ? varianceResult() : currentFrame;
+        }
         if (accumulator == null) {
             accumulator = new Mat();
             switch (mode) {
                 case AVG:
                 case SUM:
-                    currentFrame.convertTo(accumulator, opencv_core.CV_32FC1);
+                    // doubles hold integer sums exactly, so the order frames are added in doesn't matter.
+                    // see merge()
+                    currentFrame.convertTo(accumulator, opencv_core.CV_64FC1);
                     break;
                 default: // Darkest and Brightest
                     // using convertTo() instead of clone() fixes the 180° flipping issue
@@ -111,20 +243,189 @@ public class ZprojectFunction implements Function<Mat, Mat> {
                     break;
                 case AVG:
                 case SUM:
-                    try (Mat tempFloatFrame = new Mat()) {
-                        currentFrame.convertTo(tempFloatFrame, opencv_core.CV_32FC1);
-                        opencv_core.add(accumulator, tempFloatFrame, accumulator);
-                    }
+                    // adds straight into the accumulator, no temporary float frame
+                    opencv_imgproc.accumulate(currentFrame, accumulator);
                     break;
             }
         }
         framesProcessedCount++;
         if (returnAccumulator) {
             // this is expensive. that's why there's a field for opt-in.
-            Mat mat = new Mat(accumulator.rows(), accumulator.cols(), accumulator.type());
-            accumulator.copyTo(mat); // as clone() seems to be leaking
+            Mat mat;
+            if (mode == OperationMode.AVG || mode == OperationMode.SUM) {
+                mat = new Mat();
+                accumulator.convertTo(mat, opencv_core.CV_32FC1); // same type as before the accumulator became 64-bit
+            } else {
+                mat = new Mat(accumulator.rows(), accumulator.cols(), accumulator.type());
+                accumulator.copyTo(mat); // as clone() seems to be leaking
+            }
             return mat;
         }
         return currentFrame;
     }
+
+    /**
+     * Adds the frames another instance has seen into this one, as if this instance had processed them too.
+     * The other instance is emptied.
+     * For 8 and 16-bit frames the result doesn't depend on how the frames were split,
+     * except for MEDIAN and PERCENTILE, see {@link FrameReservoir#merge}, and for STD and VARIANCE,
+     * which only differ by rounding. Those expect other's frames to come later.
+     */
+    public void merge(ZprojectFunction other) {
+        if (other.mode != this.mode || (isPercentile(mode) && other.percentile != this.percentile)) {
+            throw new IllegalArgumentException("Can't merge " + other.mode + " into " + this.mode);
+        }
+        if (isPercentile(mode)) {
+            if (other.reservoir != null) {
+                if (reservoir == null) {
+                    reservoir = other.reservoir;
+                } else {
+                    reservoir.merge(other.reservoir);
+                    other.reservoir.close();
+                }
+            }
+            framesProcessedCount += other.framesProcessedCount;
+            other.reservoir = null;
+            other.framesProcessedCount = 0;
+            return;
+        }
+        if (other.accumulator == null) {
+            return;
+        }
+        if (isVariance(mode)) {
+            if (accumulator == null) {
+                accumulator = other.accumulator;
+                m2 = other.m2;
+                sample = other.sample;
+                delta = other.delta;
+            } else {
+                // Chan et al.: both halves' squared differences, plus what the gap between their means adds
+                double n = (double) framesProcessedCount + other.framesProcessedCount;
+                opencv_core.subtract(other.accumulator, accumulator, delta);
+                opencv_core.scaleAdd(delta, other.framesProcessedCount / n, accumulator, accumulator);
+                opencv_core.add(m2, other.m2, m2);
+                opencv_core.multiply(delta, delta, delta, framesProcessedCount * (other.framesProcessedCount / n), -1);
+                opencv_core.add(m2, delta, m2);
+                other.closeVariance();
+            }
+            framesProcessedCount += other.framesProcessedCount;
+            other.accumulator = null;
+            other.m2 = null;
+            other.sample = null;
+            other.delta = null;
+            other.framesProcessedCount = 0;
+            return;
+        }
+        if (accumulator == null) {
+            accumulator = other.accumulator;
+        } else {
+            switch (mode) {
+                case MIN:
+                    opencv_core.min(accumulator, other.accumulator, accumulator);
+                    break;
+                case MAX:
+                    opencv_core.max(accumulator, other.accumulator, accumulator);
+                    break;
+                case AVG:
+                case SUM:
+                    opencv_core.add(accumulator, other.accumulator, accumulator);
+                    break;
+            }
+            other.accumulator.close();
+        }
+        framesProcessedCount += other.framesProcessedCount;
+        other.accumulator = null;
+        other.framesProcessedCount = 0;
+    }
+
+    /**
+     * Saves what's needed to go on later from here, see {@link #readState}.
+     * The accumulator is written as is, 64-bit for AVG and SUM: a few MB per frame size, not per frame.
+     * MEDIAN and PERCENTILE write their whole reservoir, up to its budget. STD and VARIANCE write two 64-bit mats.
+     */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeUTF(mode.name());
+        out.writeInt(framesProcessedCount);
+        if (isPercentile(mode)) {
+            out.writeDouble(percentile);
+            out.writeInt(reservoir == null ? 0 : 1);
+            if (reservoir != null) {
+                reservoir.write(out);
+            }
+            return;
+        }
+        out.writeInt(accumulator == null ? 0 : 1);
+        if (accumulator != null) {
+            FrameReservoir.writeMat(out, accumulator);
+            if (isVariance(mode)) {
+                FrameReservoir.writeMat(out, m2);
+            }
+        }
+    }
+
+    /**
+     * Replaces the state of this instance with one saved by {@link #writeState}, from an instance in the same mode.
+     */
+    public void readState(DataInputStream in) throws IOException {
+        String savedMode = in.readUTF();
+        if (!savedMode.equals(mode.name())) {
+            throw new IOException("Saved state is for " + savedMode + ", not " + mode);
+        }
+        int count = in.readInt();
+        if (isPercentile(mode)) {
+            double savedPercentile = in.readDouble();
+            if (savedPercentile != percentile) {
+                throw new IOException("Saved state is for percentile " + savedPercentile + ", not " + percentile);
+            }
+            FrameReservoir saved = null;
+            if (in.readInt() == 1) {
+                saved = new FrameReservoir();
+                saved.read(in);
+            }
+            if (reservoir != null) {
+                reservoir.close();
+            }
+            reservoir = saved;
+            framesProcessedCount = count;
+            return;
+        }
+        Mat saved = in.readInt() == 1 ? FrameReservoir.readMat(in) : null;
+        if (isVariance(mode)) {
+            Mat savedM2 = null;
+            if (saved != null) {
+                try {
+                    savedM2 = FrameReservoir.readMat(in);
+                } catch (IOException e) {
+                    saved.close();
+                    throw e;
+                }
+            }
+            closeVariance();
+            accumulator = saved;
+            m2 = savedM2;
+            if (saved != null) {
+                sample = new Mat();
+                delta = new Mat();
+            }
+            framesProcessedCount = count;
+            return;
+        }
+        if (accumulator != null) {
+            accumulator.close();
+        }
+        accumulator = saved;
+        framesProcessedCount = count;
+    }
+
+    public OperationMode getMode() {
+        return mode;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public int getFramesProcessedCount() {
+        return framesProcessedCount;
+    }
 }